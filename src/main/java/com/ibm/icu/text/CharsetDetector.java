@@ -9,9 +9,10 @@ package com.ibm.icu.text;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -85,14 +86,238 @@ public class CharsetDetector {
      * @stable ICU 3.4
      */
     public CharsetDetector setText(byte [] in) {
-        fRawInput  = in;
-        fRawLength = in.length;
+        return setText(in, in.length);
+    }
+    
+    /**
+     * Set the input text (byte) data whose charset is to be detected.
+     *  The array is used as is, without copy : it must not be modified
+     *  while the detection runs, nor while the returned matches are used
+     *  to read the text.
+     * 
+     * @param in the buffer holding the input text of unknown encoding
+     * @param length the number of bytes of input text in the buffer
+     * 
+     * @return This CharsetDetector
+     */
+    public CharsetDetector setText(byte [] in, int length) {
+        fRawInput    = in;
+        fRawLength   = length;
+        fInputStream = null;
+        fStreaming   = false;
+        fScored = false;
+        
+        return this;
+    }
+    
+    /**
+     * Add input text (byte) data to the data already given with update(), for
+     *  progressive detection : currentBest() and isConclusive() can be called
+     *  between updates. The bytes are copied in an internal buffer of the
+     *  maximum input length, and bytes beyond it are ignored, so that memory
+     *  does not grow with the input.
+     *  setText() and reset() start a new input.
+     * 
+     * @param in the buffer holding the next bytes of input text
+     * @param off the offset of the bytes in the buffer
+     * @param len the number of bytes
+     * 
+     * @return This CharsetDetector
+     */
+    public CharsetDetector update(byte [] in, int off, int len) {
+        int count = startUpdate(len);
+        System.arraycopy(in, off, fRawInput, fRawLength, count);
+        fRawLength += count;
+        
+        return this;
+    }
+    
+    /**
+     * Add input text (byte) data to the data already given with update(), for
+     *  progressive detection. The remaining bytes of the buffer are consumed,
+     *  including bytes beyond the maximum input length, which are ignored.
+     * 
+     * @param in the buffer holding the next bytes of input text
+     * 
+     * @return This CharsetDetector
+     * @see #update(byte[], int, int)
+     */
+    public CharsetDetector update(ByteBuffer in) {
+        int count = startUpdate(in.remaining());
+        in.get(fRawInput, fRawLength, count);
+        in.position(in.limit());
+        fRawLength += count;
+        
+        return this;
+    }
+    
+    /*
+     * Prepare the stream buffer for an update, starting a new input if the
+     *   previous one was not given with update().
+     * @return the number of bytes of the update which are kept.
+     */
+    private int startUpdate(int len) {
+        if (!fStreaming) {
+            if (fStreamBuffer == null) {
+                fStreamBuffer = new byte[fMaxInputLength];
+            }
+            fRawInput    = fStreamBuffer;
+            fRawLength   = 0;
+            fInputStream = null;
+            fStreaming   = true;
+        }
+        int count = Math.min(len, fMaxInputLength - fRawLength);
+        if (count > 0) {
+            fScored = false;
+        }
+        return count;
+    }
+    
+    /**
+     * Get the charset that best matches the input data given so far. The
+     *  confidences are kept until the input changes : calling this method
+     *  between updates of a few bytes costs nothing, and detectAll() or
+     *  detectTop() return the matches without detecting again.
+     * 
+     * @return the best match, or <code>null</code> if there is no match.
+     */
+    public CharsetMatch currentBest() {
+        return selectTop(1) == 0 ? null : newMatch(fTop[0]);
+    }
+    
+    /**
+     * Test if more input data is unlikely to change the best match : the
+     *  confidence of the best match exceeds the confidence of the second one by
+     *  the conclusive margin, or the maximum input length is reached (more data
+     *  would be ignored).
+     * 
+     * @return <code>true</code> if the detection can stop.
+     * @see #setConclusiveMargin(int)
+     */
+    public boolean isConclusive() {
+        if (fRawLength >= fMaxInputLength) {
+            return true;
+        }
+        int count = selectTop(2);
+        if (count == 0) {
+            return false;
+        }
+        int runnerUp = count > 1 ? fConfidences[fTop[1]] : 0;
+        return fConfidences[fTop[0]] - runnerUp >= fConclusiveMargin;
+    }
+    
+    /**
+     * Set the difference of confidence between the two best matches from which
+     *  isConclusive() is true. The default is 50.
+     * 
+     * @param margin the confidence margin, from 0 to 100
+     * 
+     * @return This CharsetDetector
+     */
+    public CharsetDetector setConclusiveMargin(int margin) {
+        fConclusiveMargin = margin;
+        
+        return this;
+    }
+    
+    /**
+     * Forget the input text and the declared encoding, so that the detector
+     *  can be used again for other data. Internal buffers are kept : a
+     *  detector reused for many inputs does not allocate them again.
+     *  The input filter setting is not changed.
+     *  <p/>
+     *  A CharsetDetector is not thread-safe : use one detector per thread.
+     * 
+     * @return This CharsetDetector
+     */
+    public CharsetDetector reset() {
+        fRawInput         = null;
+        fRawLength        = 0;
+        fInputStream      = null;
+        fDeclaredEncoding = null;
+        fInputBytes       = null;
+        fInputLen         = 0;
+        fStreaming        = false;
+        fScored           = false;
+        
+        return this;
+    }
+    
+    /**
+     * Restrict the detection to some charsets : only the recognizers of these
+     *  charsets are run, the others never match. A recognizer of ISO-8859-x
+     *  also runs for the windows-125x charset reported when the input has C1
+     *  bytes. The order of the matches of the remaining charsets is the same as
+     *  with all the recognizers.
+     * 
+     * @param encodings the charset names (case is ignored), or <code>null</code>
+     *                  to run all the recognizers.
+     * 
+     * @return This CharsetDetector
+     * 
+     * @throws IllegalArgumentException if a charset cannot be detected.
+     */
+    public CharsetDetector setDetectableCharsets(String[] encodings) {
+        if (encodings == null) {
+            fActive = fAllRecognizers;
+        } else {
+            boolean[] selected = new boolean[fCSRecognizers.size()];
+            int count = 0;
+            for (String encoding : encodings) {
+                boolean found = false;
+                for (int i = 0; i < selected.length; i++) {
+                    CharsetRecognizer csr = fCSRecognizers.get(i);
+                    if (encoding.equalsIgnoreCase(csr.getName())
+                            || encoding.equalsIgnoreCase(csr.getC1Name())) {
+                        found = true;
+                        if (!selected[i]) {
+                            selected[i] = true;
+                            count++;
+                        }
+                    }
+                }
+                if (!found) {
+                    throw new IllegalArgumentException("Invalid encoding: " + encoding);
+                }
+            }
+            // recognizers keep their order, so do ties of confidence
+            fActive = new int[count];
+            count = 0;
+            for (int i = 0; i < selected.length; i++) {
+                if (selected[i]) {
+                    fActive[count++] = i;
+                }
+            }
+        }
+        Arrays.fill(fConfidences, 0);
+        fScored = false;
         
         return this;
     }
     
     private static final int kBufSize = 8000;
 
+    /**
+     * Set the maximum number of input bytes analysed. Longer input text is
+     *  truncated. The default is 8000 bytes.
+     * 
+     * @param length the maximum number of bytes analysed
+     * 
+     * @return This CharsetDetector
+     */
+    public CharsetDetector setMaxInputLength(int length) {
+        if (length != fMaxInputLength) {
+            fMaxInputLength = length;
+            // buffers are allocated again on next use
+            fStrippedBytes  = null;
+            fStreamBuffer   = null;
+            fStreaming      = false;
+            fScored = false;
+        }
+        
+        return this;
+    }
+
     /**
      * Set the input text (byte) data whose charset is to be detected.
      *  <p/>
@@ -111,12 +336,17 @@ public class CharsetDetector {
     
     public CharsetDetector setText(InputStream in) throws IOException {
         fInputStream = in;
-        fInputStream.mark(kBufSize);
-        fRawInput = new byte[kBufSize];   // Always make a new buffer because the
-                                          //   previous one may have come from the caller,
+        fInputStream.mark(fMaxInputLength);
+        if (fStreamBuffer == null) {
+            fStreamBuffer = new byte[fMaxInputLength];
+        }
+        fRawInput = fStreamBuffer;        // Never the previous input buffer because it
+                                          //   may have come from the caller,
                                           //   in which case we can't touch it.
         fRawLength = 0;
-        int remainingLength = kBufSize;
+        fStreaming = false;
+        fScored = false;
+        int remainingLength = fMaxInputLength;
         while (remainingLength > 0 ) {
             // read() may give data in smallish chunks, esp. for remote sources.  Hence, this loop.
             int  bytesRead = fInputStream.read(fRawInput, fRawLength, remainingLength);
@@ -181,30 +411,168 @@ public class CharsetDetector {
      * @stable ICU 3.4
      */
     public CharsetMatch[] detectAll() {
-        CharsetRecognizer csr;
-        int               i;
-        int               detectResults;
-        int               confidence;
-        ArrayList<CharsetMatch>         matches = new ArrayList<CharsetMatch>();
+        CharsetMatch [] matches = new CharsetMatch[fCSRecognizers.size()];
+        int count = detectAll(matches);
         
+        return Arrays.copyOf(matches, count);
+    }
+    
+    /**
+     *  Find all charsets that appear to be plausible matches with the input
+     *  data, and store them in a caller-supplied array, best quality match first
+     *  (same order as detectAll()). No other object than the matches themselves
+     *  is allocated.
+     * 
+     * @param matches The array receiving the matches. Its length must be at least
+     *                the number of recognizers (getAllDetectableCharsets() may be
+     *                shorter).
+     * @return The number of matches stored in the array.
+     */
+    public int detectAll(CharsetMatch[] matches) {
+        int count = selectTop(matches.length);
+        for (int i = 0; i < count; i++) {
+            matches[i] = newMatch(fTop[i]);
+        }
+        return count;
+    }
+    
+    /**
+     *  Find the best matches of the input data, best quality match first (same
+     *  order as detectAll()), as charset and language IDs and confidences stored
+     *  in caller-supplied arrays. Only the requested number of matches is
+     *  selected, and no object is allocated : unlike CharsetMatch objects, the
+     *  results do not refer to the input data.
+     * 
+     * @param k           The maximum number of matches.
+     * @param charsetIds  Receives the charset IDs, see getCharsetName(int).
+     * @param languageIds Receives the language IDs, see getLanguageCode(int),
+     *                    or -1 when the language cannot be determined.
+     * @param confidences Receives the confidences (1-100).
+     * @return The number of matches stored in the arrays, at most k : the
+     *         arrays must be at least that long.
+     */
+    public int detectTop(int k, int[] charsetIds, int[] languageIds, int[] confidences) {
+        int count = selectTop(k);
+        for (int i = 0; i < count; i++) {
+            int r = fTop[i];
+            charsetIds[i]  = fC1Bytes ? fC1CharsetIds[r] : fCharsetIds[r];
+            languageIds[i] = fLanguageIds[r];
+            confidences[i] = fConfidences[r];
+        }
+        return count;
+    }
+    
+    /**
+     * Get the name of a charset from its ID, as returned by detectTop().
+     * 
+     * @param charsetId the charset ID
+     * @return the charset name.
+     */
+    public static String getCharsetName(int charsetId) {
+        return fMatchNames[charsetId];
+    }
+    
+    /**
+     * Get the ISO code of a language from its ID, as returned by detectTop().
+     * 
+     * @param languageId the language ID
+     * @return the language code, or <code>null</code> for -1.
+     */
+    public static String getLanguageCode(int languageId) {
+        return languageId < 0 ? null : fLanguageCodes[languageId];
+    }
+    
+    /*
+     * Select the best matches, from the confidences of the input.
+     * @param max the maximum number of matches selected.
+     * @return the number of matches, whose recognizer indexes are in fTop.
+     */
+    private int selectTop(int max) {
+        score();
+        int count = 0;
+        
+        //  Partial insertion sort, best match first : a match is inserted before the
+        //    matches of same confidence found earlier, as a stable sort then reversed
+        //    would do, and only the first max matches are kept.
+        for (int i = 0; i < fConfidences.length; i++) {
+            int confidence = fConfidences[i];
+            if (confidence == 0 || (count == max && (max == 0 || fConfidences[fTop[max-1]] > confidence))) {
+                continue;
+            }
+            int j = count < max ? count++ : max - 1;
+            for (; j > 0 && fConfidences[fTop[j-1]] <= confidence; j--) {
+                fTop[j] = fTop[j-1];
+            }
+            fTop[j] = i;
+        }
+        return count;
+    }
+    
+    /*
+     * Run the recognizers on the input data, if not already done for this input.
+     */
+    private void score() {
+        if (fScored) {
+            return;
+        }
         MungeInput();  // Strip html markup, collect byte stats.
         
-        //  Iterate over all possible charsets, remember all that
-        //    give a match quality > 0.
-        for (i=0; i<fCSRecognizers.size(); i++) {
-            csr = fCSRecognizers.get(i);
-            detectResults = csr.match(this);
-            confidence = detectResults & 0x000000ff;
-            if (confidence > 0) {
-                CharsetMatch  m = new CharsetMatch(this, csr, confidence);
-                matches.add(m);
+        //  Confidences of the recognizers not run stay 0 : no match.
+        int[] active = fActive;
+        int skipped = 0;
+        for (int a=0; a<active.length; a++) {
+            int i = active[a];
+            CharsetRecognizer csr = fCSRecognizers.get(i);
+            if (!csr.isPlausible(this)) {
+                // Gating : the byte statistics show that it can not match.
+                fConfidences[i] = 0;
+                skipped++;
+            } else {
+                fConfidences[i] = csr.match(this);
             }
         }
-        Collections.sort(matches);      // CharsetMatch compares on confidence
-        Collections.reverse(matches);   //  Put best match first.
-        CharsetMatch [] resultArray = new CharsetMatch[matches.size()];
-        resultArray = matches.toArray(resultArray);
-        return resultArray;
+        fRecognizerRuns.addAndGet(active.length - skipped);
+        fRecognizerSkips.addAndGet(skipped);
+        fScored = true;
+    }
+    
+    /*
+     * Create the match of a recognizer, for the input data.
+     */
+    private CharsetMatch newMatch(int recognizer) {
+        CharsetRecognizer csr = fCSRecognizers.get(recognizer);
+        return new CharsetMatch(this, fConfidences[recognizer],
+                fC1Bytes ? csr.getC1Name() : csr.getName(), csr.getLanguage());
+    }
+    
+    /**
+     * Get the number of recognizer invocations of all the detections done
+     * since the class was loaded, in all threads.
+     * 
+     * @return the number of invocations.
+     */
+    public static long getRecognizerRunCount() {
+        return fRecognizerRuns.get();
+    }
+    
+    /**
+     * Get the number of recognizer invocations skipped because the byte
+     * statistics of the input show that the charset can not match.
+     * 
+     * @return the number of skipped invocations.
+     */
+    public static long getRecognizerSkipCount() {
+        return fRecognizerSkips.get();
+    }
+    
+    /**
+     * Get the number of charset recognizers, which is the maximum number of
+     * matches of a detection.
+     * 
+     * @return the number of recognizers.
+     */
+    public static int getRecognizerCount() {
+        return fCSRecognizers.size();
     }
 
     
@@ -326,6 +694,7 @@ public class CharsetDetector {
         boolean previous = fStripTags;
         
         fStripTags = filter;
+        fScored = false;
         
         return previous;
     }
@@ -349,6 +718,10 @@ public class CharsetDetector {
         //     Count how many total '<' and illegal (nested) '<' occur, so we can make some
         //     guess as to whether the input was actually marked up at all.
         if (fStripTags) {
+            if (fStrippedBytes == null) {
+                fStrippedBytes = new byte[fMaxInputLength];
+            }
+            fInputBytes = fStrippedBytes;
             for (srci = 0; srci < fRawLength && dsti < fInputBytes.length; srci++) {
                 b = fRawInput[srci];
                 if (b == (byte)'<') {
@@ -380,21 +753,20 @@ public class CharsetDetector {
                 (fInputLen < 100 && fRawLength>600)) {
             int limit = fRawLength;
             
-            if (limit > kBufSize) {
-                limit = kBufSize;
+            if (limit > fMaxInputLength) {
+                limit = fMaxInputLength;
             }
             
-            for (srci=0; srci<limit; srci++) {
-                fInputBytes[srci] = fRawInput[srci];
-            }
-            fInputLen = srci;
+            // Recognizers only read the input : use the raw bytes without copy.
+            fInputBytes = fRawInput;
+            fInputLen = limit;
         }
         
         //
         // Tally up the byte occurence statistics.
         //   These are available for use by the various detectors.
         //
-        Arrays.fill(fByteStats, (short)0);
+        Arrays.fill(fByteStats, 0);
         for (srci=0; srci<fInputLen; srci++) {
             int val = fInputBytes[srci] & 0x00ff;
             fByteStats[val]++;
@@ -407,6 +779,18 @@ public class CharsetDetector {
                 break;
             }
         }
+        
+        fHighBytes = fC1Bytes;
+        for (int i = 0xA0; i <= 0xFF && !fHighBytes; i += 1) {
+            if (fByteStats[i] != 0) {
+                fHighBytes = true;
+            }
+        }
+        
+        fStatsCoverRaw = fInputBytes == fRawInput && fInputLen == fRawLength;
+        
+        fNGramFamily = null;
+        fCJKScored   = false;
      }
 
     /*
@@ -414,20 +798,59 @@ public class CharsetDetector {
      *     the recognition process
      * 
      */
-    byte[]      fInputBytes =       // The text to be checked.  Markup will have been
-                   new byte[kBufSize];  //   removed if appropriate.
+    byte[]      fInputBytes;        // The text to be checked.  Markup will have been
+                                    //   removed if appropriate.  Either the raw input or
+                                    //   fStrippedBytes : recognizers must not modify it.
     
     int         fInputLen;          // Length of the byte data in fInputText.
     
-    short       fByteStats[] =      // byte frequency statistics for the input text.
-                   new short[256];  //   Value is percent, not absolute.
+    int         fByteStats[] =      // byte frequency statistics for the input text.
+                   new int[256];    //   Value is percent, not absolute.
                                     //   Value is rounded up, so zero really means zero occurences.
     
     boolean     fC1Bytes =          // True if any bytes in the range 0x80 - 0x9F are in the input;
                    false;
     
+    boolean     fHighBytes;         // True if any bytes in the range 0x80 - 0xFF are in the input.
+    
+    boolean     fStatsCoverRaw;     // True if the input text is the whole raw input (no markup
+                                    //   removed, no truncation) : the byte statistics also
+                                    //   describe the raw bytes some recognizers read.
+    
+    Object      fNGramFamily;       // The single-byte charset family whose n-gram scores
+                                    //   for the input text are below, or null.
+    
+    int         fNGramCount;        // Number of 3-grams in the input text, for that family.
+    
+    int[]       fNGramHits =        // Number of 3-grams found in the table of each language
+                   new int[CharsetRecog_sbcs.NGramFamily.MAX_LANGUAGES];
+                                    //   of that family.
+    
+    boolean     fCJKScored;         // True if the Asian charsets are scored for the input text.
+    
+    int[]       fCJKConfidences =   // Confidence of each Asian charset.
+                   new int[CharsetRecog_mbcs.CJK_COUNT];
+    
+    int[]       fCJKCounts =        // Character counts of each Asian charset, while scoring.
+                   new int[CharsetRecog_mbcs.CJK_COUNT * CharsetRecog_mbcs.COUNTS_PER_CHARSET];
+    
     String      fDeclaredEncoding;
     
+    boolean     fStreaming;         // True if the input is given with update().
+    
+    boolean     fScored;            // True if the recognizers are run for the input text.
+    
+    int[]       fConfidences =      // Confidence of each recognizer for the input text.
+                   new int[fCSRecognizers.size()];
+    
+    int[]       fTop =              // Recognizers of the best matches, by selectTop().
+                   new int[fCSRecognizers.size()];
+    
+    int         fConclusiveMargin = 50;
+    
+    int[]       fActive =           // Recognizers run, see setDetectableCharsets().
+                   fAllRecognizers;
+    
     
 
     //
@@ -445,12 +868,41 @@ public class CharsetDetector {
     boolean              fStripTags =   // If true, setText() will strip tags from input text.
                            false;
     
+    int                  fMaxInputLength = // Maximum number of input bytes analysed.
+                           kBufSize;
+    
+    //
+    //  Buffers kept for the next detections, allocated on first use.
+    //
+    private byte[]       fStrippedBytes;  // Input text without markup.
+    private byte[]       fStreamBuffer;   // Head of the user's input stream.
+    
     
     /*
      * List of recognizers for all charsets known to the implementation.
+     *   Recognizers are stateless (the confidence of a match is returned by match()),
+     *   so they are shared by all the CharsetDetector instances, whatever the thread.
      */
     private static ArrayList<CharsetRecognizer> fCSRecognizers = createRecognizers();
     private static String [] fCharsetNames;
+    private static int [] fAllRecognizers;
+    
+    /*
+     * IDs of the results of detectTop() : names of the charsets and codes of the
+     *   languages, and IDs of the charset name, of the charset name with C1 bytes
+     *   and of the language (-1 if none) of each recognizer.
+     */
+    private static String [] fMatchNames;
+    private static String [] fLanguageCodes;
+    private static int [] fCharsetIds;
+    private static int [] fC1CharsetIds;
+    private static int [] fLanguageIds;
+    
+    /*
+     * Counters of recognizer invocations, run and skipped by gating, for all detectors.
+     */
+    private static final AtomicLong fRecognizerRuns  = new AtomicLong();
+    private static final AtomicLong fRecognizerSkips = new AtomicLong();
     
     /*
      * Create the singleton instances of the CharsetRecognizer classes
@@ -519,6 +971,41 @@ public class CharsetDetector {
         fCharsetNames = new String[out];
         System.arraycopy(charsetNames, 0, fCharsetNames, 0, out);
         
+        // Number the names of the matches and the languages, for detectTop().
+        ArrayList<String> matchNames = new ArrayList<String>();
+        ArrayList<String> languageCodes = new ArrayList<String>();
+        fCharsetIds   = new int[recognizers.size()];
+        fC1CharsetIds = new int[recognizers.size()];
+        fLanguageIds  = new int[recognizers.size()];
+        for (int i = 0; i < recognizers.size(); i++) {
+            CharsetRecognizer csr = recognizers.get(i);
+            fCharsetIds[i]   = addId(matchNames, csr.getName());
+            fC1CharsetIds[i] = addId(matchNames, csr.getC1Name());
+            fLanguageIds[i]  = addId(languageCodes, csr.getLanguage());
+        }
+        fAllRecognizers = new int[recognizers.size()];
+        for (int i = 0; i < fAllRecognizers.length; i++) {
+            fAllRecognizers[i] = i;
+        }
+        fMatchNames    = matchNames.toArray(new String[matchNames.size()]);
+        fLanguageCodes = languageCodes.toArray(new String[languageCodes.size()]);
+        
         return recognizers;
     }
+    
+    /*
+     * Get the ID of a name, added to the list if needed.
+     * @return the index of the name in the list, or -1 for null.
+     */
+    private static int addId(ArrayList<String> names, String name) {
+        if (name == null) {
+            return -1;
+        }
+        int id = names.indexOf(name);
+        if (id < 0) {
+            id = names.size();
+            names.add(name);
+        }
+        return id;
+    }
 }
@@ -201,7 +201,7 @@ public class CharsetMatch implements Comparable<CharsetMatch> {
      * @stable ICU 3.4
      */
     public String getName() {
-        return fRecognizer.getName();
+        return fCharsetName;
     }
     
     /**
@@ -212,7 +212,7 @@ public class CharsetMatch implements Comparable<CharsetMatch> {
      * @stable ICU 3.4
      */
     public String getLanguage() {
-        return fRecognizer.getLanguage();
+        return fLang;
     }
 
     /**
@@ -240,10 +240,12 @@ public class CharsetMatch implements Comparable<CharsetMatch> {
 
     /*
      *  Constructor.  Implementation internal
+     *     Name and language are given by the detector, as they depend on the input data.
      */
-    CharsetMatch(CharsetDetector det, CharsetRecognizer rec, int conf) {
-        fRecognizer = rec;
-        fConfidence = conf;
+    CharsetMatch(CharsetDetector det, int conf, String csName, String lang) {
+        fConfidence  = conf;
+        fCharsetName = csName;
+        fLang        = lang;
         
         // The references to the original aplication input data must be copied out
         //   of the charset recognizer to here, in case the application resets the
@@ -253,6 +255,9 @@ public class CharsetMatch implements Comparable<CharsetMatch> {
             //   not if is just the head of a stream.
             fRawInput    = det.fRawInput;
             fRawLength   = det.fRawLength;
+        } else {
+            fRawInput    = null;
+            fRawLength   = 0;
         }
         fInputStream = det.fInputStream;
     }
@@ -260,13 +265,15 @@ public class CharsetMatch implements Comparable<CharsetMatch> {
     
     //
     //   Private Data
+    //     A match is immutable : it can be read by any thread.
     //
-    private int                 fConfidence;
-    private CharsetRecognizer   fRecognizer;
-    private byte[]              fRawInput = null;     // Original, untouched input bytes.
+    private final int           fConfidence;
+    private final String        fCharsetName;         // The name of the charset.
+    private final String        fLang;                // The ISO code of the language, or null.
+    private final byte[]        fRawInput;            // Original, untouched input bytes.
                                                       //  If user gave us a byte array, this is it.
-    private int                 fRawLength;           // Length of data in fRawInput array.
+    private final int           fRawLength;           // Length of data in fRawInput array.
 
-    private InputStream         fInputStream = null;  // User's input stream, or null if the user
+    private final InputStream   fInputStream;         // User's input stream, or null if the user
                                                       //   gave us a byte array.
 }
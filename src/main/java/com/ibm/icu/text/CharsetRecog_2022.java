@@ -92,6 +92,13 @@ abstract class CharsetRecog_2022 extends CharsetRecognizer {
         return quality;
     }
 
+    /*
+     * Escape sequences start with ESC : without ESC there is no hit.
+     */
+    boolean isPlausible(CharsetDetector det) {
+        return det.fByteStats[0x1b] > 0;
+    }
+
     
  
     
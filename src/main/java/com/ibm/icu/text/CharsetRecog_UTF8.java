@@ -27,6 +27,11 @@ class CharsetRecog_UTF8 extends CharsetRecognizer {
         int         trailBytes = 0;
         int         confidence;
         
+        if (det.fStatsCoverRaw && !det.fHighBytes) {
+            // Plain ASCII (a BOM has high bytes) : no multi-byte sequence to scan.
+            return 10;
+        }
+        
         if (det.fRawLength >= 3 && 
                 (input[0] & 0xFF) == 0xef && (input[1] & 0xFF) == 0xbb && (input[2] & 0xFF) == 0xbf) {
             hasBOM = true;
@@ -31,11 +31,17 @@ abstract class CharsetRecog_Unicode extends CharsetRecognizer {
             return "UTF-16BE";
         }
         
+        boolean isPlausible(CharsetDetector det)
+        {
+            // BOM check
+            return det.fRawLength >= 2 && (det.fRawInput[0] & 0xFF) == 0xFE;
+        }
+        
         int match(CharsetDetector det)
         {
             byte[] input = det.fRawInput;
             
-            if (input.length>=2 && ((input[0] & 0xFF) == 0xFE && (input[1] & 0xFF) == 0xFF)) {
+            if (det.fRawLength>=2 && ((input[0] & 0xFF) == 0xFE && (input[1] & 0xFF) == 0xFF)) {
                 return 100;
             }
             
@@ -51,14 +57,20 @@ abstract class CharsetRecog_Unicode extends CharsetRecognizer {
             return "UTF-16LE";
         }
         
+        boolean isPlausible(CharsetDetector det)
+        {
+            // BOM check
+            return det.fRawLength >= 2 && (det.fRawInput[0] & 0xFF) == 0xFF;
+        }
+        
         int match(CharsetDetector det)
         {
             byte[] input = det.fRawInput;
             
-            if (input.length >= 2 && ((input[0] & 0xFF) == 0xFF && (input[1] & 0xFF) == 0xFE))
+            if (det.fRawLength >= 2 && ((input[0] & 0xFF) == 0xFF && (input[1] & 0xFF) == 0xFE))
             {
                // An LE BOM is present.
-               if (input.length>=4 && input[2] == 0x00 && input[3] == 0x00) {
+               if (det.fRawLength>=4 && input[2] == 0x00 && input[3] == 0x00) {
                    // It is probably UTF-32 LE, not UTF-16
                    return 0;
                }
@@ -76,6 +88,12 @@ abstract class CharsetRecog_Unicode extends CharsetRecognizer {
         
         abstract String getName();
         
+        boolean isPlausible(CharsetDetector det)
+        {
+            // A valid code point has a zero byte (its highest byte).
+            return !det.fStatsCoverRaw || det.fByteStats[0x00] > 0;
+        }
+        
         int match(CharsetDetector det)
         {
             byte[] input   = det.fRawInput;
@@ -30,154 +30,302 @@ abstract class CharsetRecog_mbcs extends CharsetRecognizer {
     abstract String      getName() ;
     
     
+    /*
+     * Indexes of the recognizers in the scores of the detector.
+     */
+    static final int SJIS      = 0;
+    static final int BIG5      = 1;
+    static final int EUC_JP    = 2;
+    static final int EUC_KR    = 3;
+    static final int GB_18030  = 4;
+    static final int CJK_COUNT = 5;
+    
+    /*
+     * Character counts of each recognizer, in the counts of the detector.
+     */
+    private static final int TOTAL_CHARS  = 0;
+    private static final int BAD_CHARS    = 1;
+    private static final int DOUBLE_CHARS = 2;
+    private static final int COMMON_CHARS = 3;
+    static final int COUNTS_PER_CHARSET   = 4;
+    
+    /*
+     * Decoder state of a recognizer which bailed out.
+     */
+    private static final int STOPPED = -1;
+    
+    private final int fIndex;
+    
+    CharsetRecog_mbcs(int index) {
+        fIndex = index;
+    }
+    
     /**
      * Test the match of this charset with the input text data
      *      which is obtained via the CharsetDetector object.
+     *      All the Asian charsets are scored together, by the first of them
+     *      to run for the input text.
      * 
      * @param det  The CharsetDetector, which contains the input text
      *             to be checked for being in this charset.
-     * @return     Two values packed into one int  (Damn java, anyhow)
-     *             <br/>
-     *             bits 0-7:  the match confidence, ranging from 0-100
-     *             <br/>
-     *             bits 8-15: The match reason, an enum-like value.
+     * @return     the confidence (0-100), 0 if there is no match.
      */
-    int match(CharsetDetector det, int [] commonChars) {
-        @SuppressWarnings("unused")
-        int   singleByteCharCount = 0;  //TODO Do we really need this?
-        int   doubleByteCharCount = 0;
-        int   commonCharCount     = 0;
-        int   badCharCount        = 0;
-        int   totalCharCount      = 0;
-        int   confidence          = 0;
-        iteratedChar   iter       = new iteratedChar();
+    int match(CharsetDetector det) {
+        if (!det.fCJKScored) {
+            matchAll(det);
+        }
+        return det.fCJKConfidences[fIndex];
+    }
+    
+    /*
+     * Build the set of common characters of a charset : one bit per double byte
+     *   character value.
+     */
+    static long[] commonCharBits(int [] commonChars) {
+        long[] bits = new long[0x10000 / 64];
+        for (int i = 0; i < commonChars.length; i++) {
+            // NOTE: This assumes that there are no 4-byte common chars.
+            bits[commonChars[i] >>> 6] |= 1L << commonChars[i];
+        }
+        return bits;
+    }
+    
+    private static boolean isCommon(long[] commonBits, int charValue) {
+        return charValue >= 0 && charValue <= 0xffff && (commonBits[charValue >>> 6] & (1L << charValue)) != 0;
+    }
+    
+    /*
+     * Count a character of a recognizer.
+     * 
+     * @return false if the recognizer bails out : the byte data is not matching
+     *         the encoding scheme.
+     */
+    private static boolean countChar(int [] counts, int index, int charValue, boolean error, long[] commonBits) {
+        int c = index * COUNTS_PER_CHARSET;
+        
+        counts[c + TOTAL_CHARS]++;
+        if (error) {
+            counts[c + BAD_CHARS]++;
+        } else if ((charValue & 0xFFFFFFFFL) > 0xff) {
+            counts[c + DOUBLE_CHARS]++;
+            if (isCommon(commonBits, charValue)) {
+                counts[c + COMMON_CHARS]++;
+            }
+        }
+        
+        int badCharCount = counts[c + BAD_CHARS];
+        return !(badCharCount >= 2 && badCharCount*5 >= counts[c + DOUBLE_CHARS]);
+    }
+    
+    /*
+     * Score the input text for all the Asian charsets, in the detector.
+     * 
+     * One pass over the bytes advances the character decoders of Shift_JIS, Big5,
+     *   EUC (shared by EUC-JP and EUC-KR) and GB18030, each one a small state
+     *   machine : 0 at the first byte of a character, then the number of bytes
+     *   read, or STOPPED once it bailed out.
+     *   Character values are not converted to Unicode, but remain as the raw
+     *   bytes (concatenated into an int) from the codepage data.
+     *   A character cut by the end of the input is not counted.
+     * 
+     * For Asian charsets, use the raw input rather than the input that has been
+     *   stripped of markup.  Detection only considers multi-byte chars, effectively
+     *   stripping markup anyway, and double byte chars do occur in markup too.
+     */
+    static void matchAll(CharsetDetector det) {
+        int [] counts = det.fCJKCounts;
+        byte[] input  = det.fRawInput;
+        int    length = det.fRawLength;
+        
+        det.fCJKScored = true;
+        
+        if (det.fStatsCoverRaw && !det.fHighBytes) {
+            // Plain ASCII : only single byte chars, as the decoders would find.
+            Arrays.fill(det.fCJKConfidences, length < 10 ? 0 : 10);
+            return;
+        }
+        
+        Arrays.fill(counts, 0);
         
-        detectBlock: {
-            for (iter.reset(); nextChar(iter, det);) {
-                totalCharCount++;
-                if (iter.error) {
-                    badCharCount++; 
+        int sjisState = 0, sjisChar = 0;
+        int big5State = 0, big5Char = 0;
+        int eucState  = 0, eucChar  = 0;
+        int gbState   = 0, gbChar   = 0, gbThirdByte = 0;
+        
+        for (int i = 0; i < length; i++) {
+            int b = input[i] & 0xff;
+            boolean ok;
+            
+            // Shift_JIS : ASCII and half-width katakana are single byte chars.
+            if (sjisState == 0) {
+                if (b <= 0x7f || (b > 0xa0 && b <= 0xdf)) {
+                    ok = countChar(counts, SJIS, b, false, CharsetRecog_sjis.commonBits);
+                    sjisState = ok ? 0 : STOPPED;
                 } else {
-                    long cv = iter.charValue & 0xFFFFFFFFL;
-                                        
-                    if (cv <= 0xff) {
-                        singleByteCharCount++;
-                    } else {
-                        doubleByteCharCount++;
-                        if (commonChars != null) {
-                            // NOTE: This assumes that there are no 4-byte common chars.
-                            if (Arrays.binarySearch(commonChars, (int) cv) >= 0) {
-                                commonCharCount++;
-                            }
-                        }
-                    }
-                }
-                if (badCharCount >= 2 && badCharCount*5 >= doubleByteCharCount) {
-                    // Bail out early if the byte data is not matching the encoding scheme.
-                    break detectBlock;
+                    sjisChar  = b;
+                    sjisState = 1;
                 }
+            } else if (sjisState == 1) {
+                sjisChar = (sjisChar << 8) | b;
+                // Illegal second byte value.
+                ok = countChar(counts, SJIS, sjisChar, b < 0x40, CharsetRecog_sjis.commonBits);
+                sjisState = ok ? 0 : STOPPED;
             }
             
-            if (doubleByteCharCount <= 10 && badCharCount== 0) {
-                // Not many multi-byte chars.
-                if (doubleByteCharCount == 0 && totalCharCount < 10) {
-                    // There weren't any multibyte sequences, and there was a low density of non-ASCII single bytes.
-                    // We don't have enough data to have any confidence.
-                    // Statistical analysis of single byte non-ASCII charcters would probably help here.
-                    confidence = 0;
+            // Big5
+            if (big5State == 0) {
+                if (b <= 0x7f || b == 0xff) {
+                    // single byte character.
+                    ok = countChar(counts, BIG5, b, false, CharsetRecog_big5.commonBits);
+                    big5State = ok ? 0 : STOPPED;
+                } else {
+                    big5Char  = b;
+                    big5State = 1;
                 }
-                else {
-                    //   ASCII or ISO file?  It's probably not our encoding,
-                    //   but is not incompatible with our encoding, so don't give it a zero.
-                    confidence = 10;
+            } else if (big5State == 1) {
+                big5Char = (big5Char << 8) | b;
+                ok = countChar(counts, BIG5, big5Char, b < 0x40 || b == 0x7f || b == 0xff,
+                        CharsetRecog_big5.commonBits);
+                big5State = ok ? 0 : STOPPED;
+            }
+            
+            // EUC, for EUC-JP and EUC-KR
+            if (eucState != STOPPED) {
+                boolean complete = true;
+                boolean error    = false;
+                
+                if (eucState == 0) {
+                    if (b > 0x8d) {
+                        complete = false;
+                    }
+                    eucChar = b;
+                } else if (eucState == 1) {
+                    int firstByte = eucChar;
+                    eucChar = (eucChar << 8) | b;
+                    if (firstByte >= 0xa1 && firstByte <= 0xfe) {
+                        // Two byte Char
+                        error = b < 0xa1;
+                    } else if (firstByte == 0x8e) {
+                        // Code Set 2.
+                        //   In EUC-JP, total char size is 2 bytes, only one byte of actual char value.
+                        //   In EUC-TW, total char size is 4 bytes, three bytes contribute to char value.
+                        // We don't know which we've got.
+                        // Treat it like EUC-JP.  If the data really was EUC-TW, the following two
+                        //   bytes will look like a well formed 2 byte char.
+                        error = b < 0xa1;
+                    } else if (firstByte == 0x8f) {
+                        // Code set 3.
+                        // Three byte total char size, two bytes of actual char value.
+                        complete = false;
+                    }
+                } else {
+                    eucChar = (eucChar << 8) | b;
+                    error = b < 0xa1;
                 }
                 
-                break detectBlock;
+                if (complete) {
+                    ok = countChar(counts, EUC_JP, eucChar, error, CharsetRecog_euc.CharsetRecog_euc_jp.commonBits);
+                    ok = countChar(counts, EUC_KR, eucChar, error, CharsetRecog_euc.CharsetRecog_euc_kr.commonBits) && ok;
+                    eucState = ok ? 0 : STOPPED;
+                } else {
+                    eucState++;
+                }
             }
             
-            //
-            //  No match if there are too many characters that don't fit the encoding scheme.
-            //    (should we have zero tolerance for these?)
-            //
-            if (doubleByteCharCount < 20*badCharCount) {
-                confidence = 0;
-                break detectBlock;
+            // GB18030
+            if (gbState != STOPPED) {
+                boolean complete = true;
+                boolean error    = false;
+                
+                if (gbState == 0) {
+                    if (b > 0x80) {
+                        complete = false;
+                    }
+                    gbChar = b;
+                } else if (gbState == 1) {
+                    int firstByte = gbChar;
+                    gbChar = (gbChar << 8) | b;
+                    if (firstByte <= 0xfe) {
+                        // Two byte Char
+                        if ((b >= 0x40 && b <= 0x7e) || (b >= 80 && b <= 0xfe)) {
+                            // well formed
+                        } else if (b >= 0x30 && b <= 0x39) {
+                            // Four byte char
+                            complete = false;
+                        } else {
+                            error = true;
+                        }
+                    }
+                } else if (gbState == 2) {
+                    if (b >= 0x81 && b <= 0xfe) {
+                        gbThirdByte = b;
+                        complete = false;
+                    } else {
+                        error = true;
+                    }
+                } else {
+                    if (b >= 0x30 && b <= 0x39) {
+                        gbChar = (gbChar << 16) | (gbThirdByte << 8) | b;
+                    } else {
+                        error = true;
+                    }
+                }
+                
+                if (complete) {
+                    ok = countChar(counts, GB_18030, gbChar, error, CharsetRecog_gb_18030.commonBits);
+                    gbState = ok ? 0 : STOPPED;
+                } else {
+                    gbState++;
+                }
             }
             
-            if (commonChars == null) {
-                // We have no statistics on frequently occuring characters.
-                //  Assess confidence purely on having a reasonable number of
-                //  multi-byte characters (the more the better
-                confidence = 30 + doubleByteCharCount - 20*badCharCount;
-                if (confidence > 100) {
-                    confidence = 100;
-                }
-            }else {
-                //
-                // Frequency of occurence statistics exist.
-                //
-                double maxVal = Math.log((float)doubleByteCharCount / 4);
-                double scaleFactor = 90.0 / maxVal;
-                confidence = (int)(Math.log(commonCharCount+1) * scaleFactor + 10);
-                confidence = Math.min(confidence, 100);
+            if (sjisState == STOPPED && big5State == STOPPED && eucState == STOPPED && gbState == STOPPED) {
+                break;
             }
-        }   // end of detectBlock:
+        }
         
-        return confidence;
+        int states[] = {sjisState, big5State, eucState, eucState, gbState};
+        for (int index = 0; index < CJK_COUNT; index++) {
+            int c = index * COUNTS_PER_CHARSET;
+            det.fCJKConfidences[index] = states[index] == STOPPED ? 0 :
+                confidence(counts[c + TOTAL_CHARS], counts[c + BAD_CHARS],
+                           counts[c + DOUBLE_CHARS], counts[c + COMMON_CHARS]);
+        }
     }
     
-     // "Character"  iterated character class.
-     //    Recognizers for specific mbcs encodings make their "characters" available
-     //    by providing a nextChar() function that fills in an instance of iteratedChar
-     //    with the next char from the input.
-     //    The returned characters are not converted to Unicode, but remain as the raw
-     //    bytes (concatenated into an int) from the codepage data.
-     //
-     //  For Asian charsets, use the raw input rather than the input that has been
-     //   stripped of markup.  Detection only considers multi-byte chars, effectively
-     //   stripping markup anyway, and double byte chars do occur in markup too.
-     //
-     static class iteratedChar {
-         int             charValue = 0;             // 1-4 bytes from the raw input data
-         int             index     = 0;
-         int             nextIndex = 0;
-         boolean         error     = false;
-         boolean         done      = false;
-         
-         void reset() {
-             charValue = 0;
-             index     = -1;
-             nextIndex = 0;
-             error     = false;
-             done      = false;
-         }
-         
-         int nextByte(CharsetDetector det) {
-             if (nextIndex >= det.fRawLength) {
-                 done = true;
-                 return -1;
-             }
-             int byteValue = (int)det.fRawInput[nextIndex++] & 0x00ff;
-             return byteValue;
-         }       
-     }
-     
-     /**
-      * Get the next character (however many bytes it is) from the input data
-      *    Subclasses for specific charset encodings must implement this function
-      *    to get characters according to the rules of their encoding scheme.
-      * 
-      *  This function is not a method of class iteratedChar only because
-      *   that would require a lot of extra derived classes, which is awkward.
-      * @param it  The iteratedChar "struct" into which the returned char is placed.
-      * @param det The charset detector, which is needed to get at the input byte data
-      *            being iterated over.
-      * @return    True if a character was returned, false at end of input.
-      */
-     abstract boolean nextChar(iteratedChar it, CharsetDetector det);
-     
-
-
+    /*
+     * Get the confidence of a charset from its character counts.
+     */
+    private static int confidence(int totalCharCount, int badCharCount, int doubleByteCharCount, int commonCharCount) {
+        if (doubleByteCharCount <= 10 && badCharCount== 0) {
+            // Not many multi-byte chars.
+            if (doubleByteCharCount == 0 && totalCharCount < 10) {
+                // There weren't any multibyte sequences, and there was a low density of non-ASCII single bytes.
+                // We don't have enough data to have any confidence.
+                // Statistical analysis of single byte non-ASCII charcters would probably help here.
+                return 0;
+            }
+            //   ASCII or ISO file?  It's probably not our encoding,
+            //   but is not incompatible with our encoding, so don't give it a zero.
+            return 10;
+        }
+        
+        //
+        //  No match if there are too many characters that don't fit the encoding scheme.
+        //    (should we have zero tolerance for these?)
+        //
+        if (doubleByteCharCount < 20*badCharCount) {
+            return 0;
+        }
+        
+        //
+        // Frequency of occurence statistics exist.
+        //
+        double maxVal = Math.log((float)doubleByteCharCount / 4);
+        double scaleFactor = 90.0 / maxVal;
+        int confidence = (int)(Math.log(commonCharCount+1) * scaleFactor + 10);
+        return Math.min(confidence, 100);
+    }
      
      
      /**
@@ -196,35 +344,12 @@ abstract class CharsetRecog_mbcs extends CharsetRecognizer {
              0x8343, 0x834e, 0x834f, 0x8358, 0x835e, 0x8362, 0x8367, 0x8375, 0x8376, 0x8389, 
              0x838a, 0x838b, 0x838d, 0x8393, 0x8e96, 0x93fa, 0x95aa};
          
-         boolean nextChar(iteratedChar it, CharsetDetector det) {
-             it.index = it.nextIndex;
-             it.error = false;
-             int firstByte;
-             firstByte = it.charValue = it.nextByte(det);
-             if (firstByte < 0) {
-                 return false;
-             }
-             
-             if (firstByte <= 0x7f || (firstByte>0xa0 && firstByte<=0xdf)) {
-                 return true;
-             }
-             
-             int secondByte = it.nextByte(det);
-             if (secondByte < 0)  {
-                 return false;          
-             }
-             it.charValue = (firstByte << 8) | secondByte;
-             if (! ((secondByte>=0x40 && secondByte<=0x7f) || (secondByte>=0x80 && secondByte<=0xff))) {
-                 // Illegal second byte value.
-                 it.error = true;
-             }
-             return true;
-         }
+         static long [] commonBits = commonCharBits(commonChars);
          
-         int match(CharsetDetector det) {
-             return match(det, commonChars);
+         CharsetRecog_sjis() {
+             super(SJIS);
          }
-         
+
          String getName() {
              return "Shift_JIS";
          }
@@ -233,8 +358,6 @@ abstract class CharsetRecog_mbcs extends CharsetRecognizer {
          {
              return "ja";
          }
-
-         
      }
      
      
@@ -257,44 +380,17 @@ abstract class CharsetRecog_mbcs extends CharsetRecognizer {
              0xaec9, 0xafe0, 0xb0ea, 0xb16f, 0xb2b3, 0xb2c4, 0xb36f, 0xb44c, 0xb44e, 0xb54c, 
              0xb5a5, 0xb5bd, 0xb5d0, 0xb5d8, 0xb671, 0xb7ed, 0xb867, 0xb944, 0xbad8, 0xbb44, 
              0xbba1, 0xbdd1, 0xc2c4, 0xc3b9, 0xc440, 0xc45f};
-          
-         boolean nextChar(iteratedChar it, CharsetDetector det) {
-             it.index = it.nextIndex;
-             it.error = false;
-             int firstByte;
-             firstByte = it.charValue = it.nextByte(det);
-             if (firstByte < 0) {
-                 return false;
-             }
-             
-             if (firstByte <= 0x7f || firstByte==0xff) {
-                 // single byte character.
-                 return true;
-             }
-             
-             int secondByte = it.nextByte(det);
-             if (secondByte < 0)  {
-                 return false;          
-             }
-             it.charValue = (it.charValue << 8) | secondByte;
-
-             if (secondByte < 0x40 ||
-                 secondByte ==0x7f ||
-                 secondByte == 0xff) {
-                     it.error = true;
-             }
-             return true;
-         }
          
-         int match(CharsetDetector det) {
-             return match(det, commonChars);
-         }
+         static long [] commonBits = commonCharBits(commonChars);
          
+         CharsetRecog_big5() {
+             super(BIG5);
+         }
+
          String getName() {
              return "Big5";
          }
-         
-         
+
          public String getLanguage()
          {
              return "zh";
@@ -303,74 +399,15 @@ abstract class CharsetRecog_mbcs extends CharsetRecognizer {
      
      
      /**
-      *   EUC charset recognizers.  One abstract class that provides the common function
-      *             for getting the next character according to the EUC encoding scheme,
+      *   EUC charset recognizers.  One abstract class for the charsets sharing the
+      *             EUC encoding scheme (their characters are decoded once),
       *             and nested derived classes for EUC_KR, EUC_JP, EUC_CN.   
       *
       */
      abstract static class CharsetRecog_euc extends CharsetRecog_mbcs {
          
-         /*
-          *  (non-Javadoc)
-          *  Get the next character value for EUC based encodings.
-          *  Character "value" is simply the raw bytes that make up the character
-          *     packed into an int.
-          */
-         boolean nextChar(iteratedChar it, CharsetDetector det) {
-             it.index = it.nextIndex;
-             it.error = false;
-             int firstByte  = 0;
-             int secondByte = 0;
-             int thirdByte  = 0;
-             //int fourthByte = 0;
-             
-             buildChar: {
-                 firstByte = it.charValue = it.nextByte(det);                 
-                 if (firstByte < 0) {
-                     // Ran off the end of the input data
-                     it.done = true;
-                     break buildChar;
-                 }
-                 if (firstByte <= 0x8d) {
-                     // single byte char
-                     break buildChar;
-                 }
-                 
-                 secondByte = it.nextByte(det);
-                 it.charValue = (it.charValue << 8) | secondByte;
-                 
-                 if (firstByte >= 0xA1 && firstByte <= 0xfe) {
-                     // Two byte Char
-                     if (secondByte < 0xa1) {
-                         it.error = true;
-                     }
-                     break buildChar;
-                 }
-                 if (firstByte == 0x8e) {
-                     // Code Set 2.
-                     //   In EUC-JP, total char size is 2 bytes, only one byte of actual char value.
-                     //   In EUC-TW, total char size is 4 bytes, three bytes contribute to char value.
-                     // We don't know which we've got.
-                     // Treat it like EUC-JP.  If the data really was EUC-TW, the following two
-                     //   bytes will look like a well formed 2 byte char.  
-                     if (secondByte < 0xa1) {
-                         it.error = true;
-                     }
-                     break buildChar;                     
-                 }
-                 
-                 if (firstByte == 0x8f) {
-                     // Code set 3.
-                     // Three byte total char size, two bytes of actual char value.
-                     thirdByte    = it.nextByte(det);
-                     it.charValue = (it.charValue << 8) | thirdByte;
-                     if (thirdByte < 0xa1) {
-                         it.error = true;
-                     }
-                 }
-              }
-             
-             return (it.done == false);
+         CharsetRecog_euc(int index) {
+             super(index);
          }
          
          /**
@@ -392,14 +429,17 @@ abstract class CharsetRecog_mbcs extends CharsetRecognizer {
                  0xa5c8, 0xa5c9, 0xa5cb, 0xa5d0, 0xa5d5, 0xa5d6, 0xa5d7, 0xa5de, 0xa5e0, 0xa5e1, 
                  0xa5e5, 0xa5e9, 0xa5ea, 0xa5eb, 0xa5ec, 0xa5ed, 0xa5f3, 0xb8a9, 0xb9d4, 0xbaee, 
                  0xbbc8, 0xbef0, 0xbfb7, 0xc4ea, 0xc6fc, 0xc7bd, 0xcab8, 0xcaf3, 0xcbdc, 0xcdd1};             
-             String getName() {
-                 return "EUC-JP";
-             }
              
-             int match(CharsetDetector det) {
-                 return match(det, commonChars);
+             static long [] commonBits = commonCharBits(commonChars);
+             
+             CharsetRecog_euc_jp() {
+                 super(EUC_JP);
              }
              
+             String getName() {
+                 return "EUC-JP";
+             }
+
              public String getLanguage()
              {
                  return "ja";
@@ -426,14 +466,16 @@ abstract class CharsetRecog_mbcs extends CharsetRecognizer {
                  0xc0da, 0xc0e5, 0xc0fb, 0xc0fc, 0xc1a4, 0xc1a6, 0xc1b6, 0xc1d6, 0xc1df, 0xc1f6, 
                  0xc1f8, 0xc4a1, 0xc5cd, 0xc6ae, 0xc7cf, 0xc7d1, 0xc7d2, 0xc7d8, 0xc7e5, 0xc8ad};
              
-             String getName() {
-                 return "EUC-KR";
-             }
+             static long [] commonBits = commonCharBits(commonChars);
              
-             int match(CharsetDetector det) {
-                 return match(det, commonChars);
+             CharsetRecog_euc_kr() {
+                 super(EUC_KR);
              }
              
+             String getName() {
+                 return "EUC-KR";
+             }
+
              public String getLanguage()
              {
                  return "ko";
@@ -447,66 +489,6 @@ abstract class CharsetRecog_mbcs extends CharsetRecognizer {
       *
       */
      static class CharsetRecog_gb_18030 extends CharsetRecog_mbcs {
-         
-         /*
-          *  (non-Javadoc)
-          *  Get the next character value for EUC based encodings.
-          *  Character "value" is simply the raw bytes that make up the character
-          *     packed into an int.
-          */
-         boolean nextChar(iteratedChar it, CharsetDetector det) {
-             it.index = it.nextIndex;
-             it.error = false;
-             int firstByte  = 0;
-             int secondByte = 0;
-             int thirdByte  = 0;
-             int fourthByte = 0;
-             
-             buildChar: {
-                 firstByte = it.charValue = it.nextByte(det); 
-                 
-                 if (firstByte < 0) {
-                     // Ran off the end of the input data
-                     it.done = true;
-                     break buildChar;
-                 }
-                 
-                 if (firstByte <= 0x80) {
-                     // single byte char
-                     break buildChar;
-                 }
-                 
-                 secondByte = it.nextByte(det);
-                 it.charValue = (it.charValue << 8) | secondByte;
-                 
-                 if (firstByte >= 0x81 && firstByte <= 0xFE) {
-                     // Two byte Char
-                     if ((secondByte >= 0x40 && secondByte <= 0x7E) || (secondByte >=80 && secondByte <=0xFE)) {
-                         break buildChar;
-                     }
-                     
-                     // Four byte char
-                     if (secondByte >= 0x30 && secondByte <= 0x39) {
-                         thirdByte = it.nextByte(det);
-                         
-                         if (thirdByte >= 0x81 && thirdByte <= 0xFE) {
-                             fourthByte = it.nextByte(det);
-                             
-                             if (fourthByte >= 0x30 && fourthByte <= 0x39) {
-                                 it.charValue = (it.charValue << 16) | (thirdByte << 8) | fourthByte;
-                                 break buildChar;
-                             }
-                         }
-                     }
-                     
-                     it.error = true;
-                     break buildChar;
-                 }
-             }
-                 
-             return (it.done == false);
-         }
-         
          static int [] commonChars = 
              // TODO:  This set of data comes from the character frequency-
              //        of-occurence analysis tool.  The data needs to be moved
@@ -521,16 +503,17 @@ abstract class CharsetRecog_mbcs extends CharsetRecognizer {
              0xcad0, 0xcad6, 0xcaf5, 0xcafd, 0xccec, 0xcdf8, 0xceaa, 0xcec4, 0xced2, 0xcee5, 
              0xcfb5, 0xcfc2, 0xcfd6, 0xd0c2, 0xd0c5, 0xd0d0, 0xd0d4, 0xd1a7, 0xd2aa, 0xd2b2, 
              0xd2b5, 0xd2bb, 0xd2d4, 0xd3c3, 0xd3d0, 0xd3fd, 0xd4c2, 0xd4da, 0xd5e2, 0xd6d0};
-
          
+         static long [] commonBits = commonCharBits(commonChars);
+         
+         CharsetRecog_gb_18030() {
+             super(GB_18030);
+         }
+
          String getName() {
              return "GB18030";
          }
-         
-         int match(CharsetDetector det) {
-             return match(det, commonChars);
-         }
-         
+
          public String getLanguage()
          {
              return "zh";
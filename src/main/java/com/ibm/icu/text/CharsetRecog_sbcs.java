@@ -9,6 +9,8 @@
 package com.ibm.icu.text;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * This class recognizes single-byte encodings. Because the encoding scheme is so
@@ -21,131 +23,271 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
      */
     abstract String getName();
 
-    /* (non-Javadoc)
-     * @see com.ibm.icu.text.CharsetRecognizer#match(com.ibm.icu.text.CharsetDetector)
+    /*
+     * The n-gram tables of the languages recognized with the same byte map (and space
+     *   character), merged in one sorted table : the input text is mapped and split
+     *   in 3-grams once for all these languages, and each 3-gram is looked up once,
+     *   its entry telling which languages it is a hit for.
+     *   The scores are kept by the CharsetDetector until its next input.
+     *
+     * The merged table is looked up through a perfect hash (hash and displace) : the
+     *   3-gram selects a bucket, the displacement of the bucket gives the only slot
+     *   where the 3-gram can be. A lookup is two hashes and three array reads,
+     *   whatever the number of languages.
      */
-    abstract int match(CharsetDetector det);
-    
-    static class NGramParser
+    static class NGramFamily
     {
-//        private static final int N_GRAM_SIZE = 3;
+        static final int MAX_LANGUAGES = 32;
+        
         private static final int N_GRAM_MASK = 0xFFFFFF;
-
-        private int byteIndex = 0;
-        private int ngram = 0;
         
-        private int[] ngramList;
-        private byte[] byteMap;
+        private static final int BUCKET_MULTIPLIER = 0x9E3779B1;
+        private static final int SLOT_MULTIPLIER   = 0x85EBCA6B;
         
-        private int ngramCount;
-        private int hitCount;
+        private static final int EMPTY_SLOT = -1;       // Not a 3-gram (24 bits).
         
-        private byte spaceChar;
+        private final byte[] byteMap;
+        private final byte   spaceChar;
         
-        public NGramParser(int[] theNgramList, byte[] theByteMap)
+        /*
+         * The merged table and the languages : replaced (never modified) when a
+         *   language is added, while the recognizers are created.
+         */
+        private static class Table
         {
-            ngramList = theNgramList;
-            byteMap   = theByteMap;
+            int[]   ngrams;             // Sorted n-grams of all the languages (to build the hash).
+            int[]   languages;          // Bit i set if ngrams[n] is an n-gram of language i.
+            int[][] languageNgrams;     // N-gram table of each language.
+            int     asciiLanguages;     // Bit i set if language i can match text without
+                                        //   high bytes (0x80 - 0xFF).
             
-            ngram = 0;
+            int[]   displacements;      // Displacement of each bucket of the perfect hash.
+            int     bucketShift;
+            int[]   slotNgrams;         // N-gram of each slot, or EMPTY_SLOT.
+            int[]   slotLanguages;      // Languages of the n-gram of each slot.
+            int     slotShift;
+        }
+        
+        private volatile Table table;
+        
+        NGramFamily(byte[] theByteMap, byte theSpaceChar)
+        {
+            byteMap   = theByteMap;
+            spaceChar = theSpaceChar;
             
-            ngramCount = hitCount = 0;
+            table = new Table();
+            table.ngrams = new int[0];
+            table.languages = new int[0];
+            table.languageNgrams = new int[0][];
+            buildHash(table);
         }
         
         /*
-         * Binary search for value in table, which must have exactly 64 entries.
+         * Add the n-gram table of a language (sorted, as required by the binary search
+         *   of the original per-language parser), and get the index of the language.
+         *   A table already added keeps its index.
          */
-        private static int search(int[] table, int value)
+        synchronized int addLanguage(int[] ngrams)
         {
-            int index = 0;
-            
-            if (table[index + 32] <= value) {
-                index += 32;
-            }
+            Table old = table;
+            int language = old.languageNgrams.length;
             
-            if (table[index + 16] <= value) {
-                index += 16;
-            }
-
-            if (table[index + 8] <= value) {
-                index += 8;
-            }
-
-            if (table[index + 4] <= value) {
-                index += 4;
+            for (int i = 0; i < language; i += 1) {
+                if (old.languageNgrams[i] == ngrams) {
+                    return i;
+                }
             }
-
-            if (table[index + 2] <= value) {
-                index += 2;
-            }
-
-            if (table[index + 1] <= value) {
-                index += 1;
-            }
-
-            if (table[index] > value) {
-                index -= 1;
+            if (language >= MAX_LANGUAGES) {
+                throw new IllegalStateException("Too many languages for the byte map");
             }
             
-            if (index < 0 || table[index] != value) {
-                return -1;
+            Table t = new Table();
+            t.languageNgrams = Arrays.copyOf(old.languageNgrams, language + 1);
+            t.languageNgrams[language] = ngrams;
+            t.asciiLanguages = old.asciiLanguages | (hasAsciiNgram(ngrams) ? 1 << language : 0);
+            
+            // Merge the new table in the sorted union.
+            int[] merged = new int[old.ngrams.length + ngrams.length];
+            int[] mergedLanguages = new int[merged.length];
+            int   i = 0, j = 0, n = 0;
+            
+            while (i < old.ngrams.length || j < ngrams.length) {
+                if (j >= ngrams.length || (i < old.ngrams.length && old.ngrams[i] < ngrams[j])) {
+                    merged[n] = old.ngrams[i];
+                    mergedLanguages[n++] = old.languages[i++];
+                } else if (i >= old.ngrams.length || ngrams[j] < old.ngrams[i]) {
+                    merged[n] = ngrams[j++];
+                    mergedLanguages[n++] = 1 << language;
+                } else {
+                    merged[n] = ngrams[j++];
+                    mergedLanguages[n++] = old.languages[i++] | 1 << language;
+                }
             }
+            t.ngrams = Arrays.copyOf(merged, n);
+            t.languages = Arrays.copyOf(mergedLanguages, n);
+            buildHash(t);
             
-            return index;
+            table = t;
+            return language;
         }
-
-        private void lookup(int thisNgram)
+        
+        /*
+         * Build the perfect hash of the merged table : about two n-grams per bucket,
+         *   a load factor of one half for the slots. Buckets are placed largest first,
+         *   each one with the first displacement putting all its n-grams in free slots.
+         */
+        private static void buildHash(Table t)
         {
-            ngramCount += 1;
+            int n = t.ngrams.length;
+            int bucketBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(1, n / 2)));
+            int slotBits   = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(1, n)) + 1);
+            
+            t.bucketShift   = 32 - bucketBits;
+            t.slotShift     = 32 - slotBits;
+            t.displacements = new int[1 << bucketBits];
+            t.slotNgrams    = new int[1 << slotBits];
+            t.slotLanguages = new int[1 << slotBits];
+            Arrays.fill(t.slotNgrams, EMPTY_SLOT);
             
-            if (search(ngramList, thisNgram) >= 0) {
-                hitCount += 1;
+            // The n-grams of each bucket.
+            int[][] buckets = new int[t.displacements.length][];
+            int[]   sizes   = new int[t.displacements.length];
+            for (int i = 0; i < n; i += 1) {
+                int bucket = (t.ngrams[i] * BUCKET_MULTIPLIER) >>> t.bucketShift;
+                if (buckets[bucket] == null) {
+                    buckets[bucket] = new int[4];
+                } else if (sizes[bucket] == buckets[bucket].length) {
+                    buckets[bucket] = Arrays.copyOf(buckets[bucket], sizes[bucket] * 2);
+                }
+                buckets[bucket][sizes[bucket]++] = i;
+            }
+            
+            Integer[] order = new Integer[buckets.length];
+            for (int b = 0; b < order.length; b += 1) {
+                order[b] = Integer.valueOf(b);
             }
+            final int[] bucketSizes = sizes;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer b1, Integer b2) {
+                    return bucketSizes[b2.intValue()] - bucketSizes[b1.intValue()];
+                }
+            });
             
+            int[] slots = new int[4];
+            for (int o = 0; o < order.length; o += 1) {
+                int bucket = order[o].intValue();
+                int size   = sizes[bucket];
+                if (size == 0) {
+                    break;
+                }
+                if (slots.length < size) {
+                    slots = new int[size];
+                }
+                
+                for (int d = 0; ; d += 1) {
+                    boolean placed = true;
+                    for (int k = 0; k < size && placed; k += 1) {
+                        int slot = ((t.ngrams[buckets[bucket][k]] ^ d) * SLOT_MULTIPLIER) >>> t.slotShift;
+                        placed = t.slotNgrams[slot] == EMPTY_SLOT;
+                        for (int l = 0; l < k && placed; l += 1) {
+                            placed = slots[l] != slot;
+                        }
+                        slots[k] = slot;
+                    }
+                    if (placed) {
+                        t.displacements[bucket] = d;
+                        for (int k = 0; k < size; k += 1) {
+                            t.slotNgrams[slots[k]]    = t.ngrams[buckets[bucket][k]];
+                            t.slotLanguages[slots[k]] = t.languages[buckets[bucket][k]];
+                        }
+                        break;
+                    }
+                }
+            }
         }
         
-        private void addByte(int b)
+        /*
+         * Get the languages whose table contains an n-gram : one probe of the perfect hash.
+         */
+        private static int lookup(Table t, int ngram)
         {
-            ngram = ((ngram << 8) + (b & 0xFF)) & N_GRAM_MASK;
-            lookup(ngram);
+            int d    = t.displacements[(ngram * BUCKET_MULTIPLIER) >>> t.bucketShift];
+            int slot = ((ngram ^ d) * SLOT_MULTIPLIER) >>> t.slotShift;
+            
+            return t.slotNgrams[slot] == ngram ? t.slotLanguages[slot] : 0;
         }
         
-        private int nextByte(CharsetDetector det)
+        /*
+         * Test if some n-grams of a language can be made of mapped ASCII bytes (or of
+         *   the zero bytes the first n-grams start with).
+         */
+        private boolean hasAsciiNgram(int[] ngrams)
         {
-            if (byteIndex >= det.fInputLen) {
-                return -1;
+            boolean[] mapped = new boolean[256];
+            mapped[0] = true;
+            mapped[spaceChar & 0xFF] = true;
+            for (int b = 0; b < 0x80; b += 1) {
+                mapped[byteMap[b] & 0xFF] = true;
             }
-            
-            return det.fInputBytes[byteIndex++] & 0xFF;
+            for (int i = 0; i < ngrams.length; i += 1) {
+                int ngram = ngrams[i];
+                if (mapped[(ngram >> 16) & 0xFF] && mapped[(ngram >> 8) & 0xFF] && mapped[ngram & 0xFF]) {
+                    return true;
+                }
+            }
+            return false;
         }
         
-        public int parse(CharsetDetector det)
+        boolean isAsciiPlausible(int language)
         {
-            return parse (det, (byte)0x20);
+            return (table.asciiLanguages & (1 << language)) != 0;
         }
-        public int parse(CharsetDetector det, byte spaceCh)
+        
+        /*
+         * Count the n-grams of the input text, and the hits of each language, in
+         *   the detector.
+         */
+        void score(CharsetDetector det, byte[] input, int inputLen)
         {
-            int b;
+            Table   t = table;
+            int[]   hits = det.fNGramHits;
+            int     ngramCount = 0;
+            int     ngram = 0;
             boolean ignoreSpace = false;
-            this.spaceChar = spaceCh;
             
-            while ((b = nextByte(det)) >= 0) {
-                byte mb = byteMap[b];
+            Arrays.fill(hits, 0);
+            
+            // The last n-gram is ended by a space.
+            for (int i = 0; i <= inputLen; i += 1) {
+                byte mb = i < inputLen ? byteMap[input[i] & 0xFF] : spaceChar;
                 
                 // TODO: 0x20 might not be a space in all character sets...
-                if (mb != 0) {
-                    if (!(mb == spaceChar && ignoreSpace)) {
-                        addByte(mb);                    
-                    }
-                    
-                    ignoreSpace = (mb == spaceChar);
+                if (mb == 0) {
+                    continue;
+                }
+                if (i < inputLen && mb == spaceChar && ignoreSpace) {
+                    continue;
+                }
+                ignoreSpace = (mb == spaceChar);
+                
+                ngram = ((ngram << 8) + (mb & 0xFF)) & N_GRAM_MASK;
+                ngramCount += 1;
+                
+                for (int languages = lookup(t, ngram); languages != 0; languages &= languages - 1) {
+                    hits[Integer.numberOfTrailingZeros(languages)] += 1;
                 }
             }
             
-            // TODO: Is this OK? The buffer could have ended in the middle of a word...
-            addByte(spaceChar);
-
-            double rawPercent = (double) hitCount / (double) ngramCount;
+            det.fNGramCount  = ngramCount;
+            det.fNGramFamily = this;
+        }
+        
+        /*
+         * Get the confidence of a language, from the scores of the detector.
+         */
+        static int getConfidence(CharsetDetector det, int language)
+        {
+            double rawPercent = (double) det.fNGramHits[language] / (double) det.fNGramCount;
             
 //                if (rawPercent <= 2.0) {
 //                    return 0;
@@ -161,20 +303,44 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
         }
     }
     
-    protected boolean haveC1Bytes = false;
+    private final NGramFamily fFamily;
+    private final int         fLanguage;
     
-    int match(CharsetDetector det, int[] ngrams,  byte[] byteMap)
+    /*
+     * @param family The byte map of the charset, shared by its languages.
+     * @param ngrams The n-gram table of the language.
+     */
+    CharsetRecog_sbcs(NGramFamily family, int[] ngrams)
     {
-        return match (det, ngrams, byteMap, (byte)0x20);
+        fFamily   = family;
+        fLanguage = family.addLanguage(ngrams);
     }
     
-    int match(CharsetDetector det, int[] ngrams,  byte[] byteMap, byte spaceChar)
+    /*
+     * Input without high bytes (0x80 - 0xFF) can only match if some n-grams of the
+     *   language are made of bytes that ASCII bytes are mapped to.
+     */
+    boolean isPlausible(CharsetDetector det)
     {
-        NGramParser parser = new NGramParser(ngrams, byteMap);
-        
-        haveC1Bytes = det.fC1Bytes;
+        return det.fHighBytes || fFamily.isAsciiPlausible(fLanguage);
+    }
+    
+    /*
+     * Score the input text for all the languages of the family.
+     */
+    void score(CharsetDetector det)
+    {
+        fFamily.score(det, det.fInputBytes, det.fInputLen);
+    }
+    
+    int match(CharsetDetector det)
+    {
+        if (det.fNGramFamily != fFamily) {
+            // First language of the family for this input.
+            score(det);
+        }
         
-        return parser.parse(det, spaceChar);
+        return NGramFamily.getConfidence(det, fLanguage);
     }
     
     abstract static class CharsetRecog_8859_1 extends CharsetRecog_sbcs
@@ -214,9 +380,21 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             (byte) 0xF8, (byte) 0xF9, (byte) 0xFA, (byte) 0xFB, (byte) 0xFC, (byte) 0xFD, (byte) 0xFE, (byte) 0xFF, 
         };
 
+        protected static final NGramFamily family = new NGramFamily(byteMap, (byte)0x20);
+
+        CharsetRecog_8859_1(int[] ngrams)
+        {
+            super(family, ngrams);
+        }
+
         public String getName()
         {
-            return haveC1Bytes? "windows-1252" : "ISO-8859-1";
+            return "ISO-8859-1";
+        }
+
+        String getC1Name()
+        {
+            return "windows-1252";
         }
     }
 
@@ -234,9 +412,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "da";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_1_da()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
 
@@ -254,9 +432,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "de";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_1_de()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -274,9 +452,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "en";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_1_en()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -294,9 +472,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "es";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_1_es()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -314,9 +492,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "fr";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_1_fr()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -334,9 +512,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "it";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_1_it()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -354,9 +532,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "nl";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_1_nl()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -374,9 +552,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "no";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_1_no()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -394,9 +572,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "pt";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_1_pt()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -414,9 +592,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "sv";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_1_sv()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -457,9 +635,21 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             (byte) 0xF8, (byte) 0xF9, (byte) 0xFA, (byte) 0xFB, (byte) 0xFC, (byte) 0xFD, (byte) 0xFE, (byte) 0x20, 
         };
 
+        protected static final NGramFamily family = new NGramFamily(byteMap, (byte)0x20);
+
+        CharsetRecog_8859_2(int[] ngrams)
+        {
+            super(family, ngrams);
+        }
+
         public String getName()
         {
-            return haveC1Bytes? "windows-1250" : "ISO-8859-2";
+            return "ISO-8859-2";
+        }
+
+        String getC1Name()
+        {
+            return "windows-1250";
         }
     }
     
@@ -477,9 +667,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "cs";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_2_cs()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -497,9 +687,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "hu";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_2_hu()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -517,9 +707,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "pl";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_2_pl()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -537,9 +727,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "ro";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_2_ro()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -580,6 +770,13 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             (byte) 0xF8, (byte) 0xF9, (byte) 0xFA, (byte) 0xFB, (byte) 0xFC, (byte) 0x20, (byte) 0xFE, (byte) 0xFF, 
         };
 
+        protected static final NGramFamily family = new NGramFamily(byteMap, (byte)0x20);
+
+        CharsetRecog_8859_5(int[] ngrams)
+        {
+            super(family, ngrams);
+        }
+
         public String getName()
         {
             return "ISO-8859-5";
@@ -600,9 +797,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "ru";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_5_ru()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -643,6 +840,13 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             (byte) 0x20, (byte) 0x20, (byte) 0x20, (byte) 0x20, (byte) 0x20, (byte) 0x20, (byte) 0x20, (byte) 0x20, 
         };
 
+        protected static final NGramFamily family = new NGramFamily(byteMap, (byte)0x20);
+
+        CharsetRecog_8859_6(int[] ngrams)
+        {
+            super(family, ngrams);
+        }
+
         public String getName()
         {
             return "ISO-8859-6";
@@ -663,9 +867,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "ar";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_6_ar()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -706,9 +910,21 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             (byte) 0xF8, (byte) 0xF9, (byte) 0xFA, (byte) 0xFB, (byte) 0xFC, (byte) 0xFD, (byte) 0xFE, (byte) 0x20, 
         };
 
+        protected static final NGramFamily family = new NGramFamily(byteMap, (byte)0x20);
+
+        CharsetRecog_8859_7(int[] ngrams)
+        {
+            super(family, ngrams);
+        }
+
         public String getName()
         {
-            return haveC1Bytes? "windows-1253" : "ISO-8859-7";
+            return "ISO-8859-7";
+        }
+
+        String getC1Name()
+        {
+            return "windows-1253";
         }
     }
     
@@ -726,9 +942,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "el";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_7_el()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -769,9 +985,21 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             (byte) 0xF8, (byte) 0xF9, (byte) 0xFA, (byte) 0x20, (byte) 0x20, (byte) 0x20, (byte) 0x20, (byte) 0x20, 
         };
 
+        protected static final NGramFamily family = new NGramFamily(byteMap, (byte)0x20);
+
+        CharsetRecog_8859_8(int[] ngrams)
+        {
+            super(family, ngrams);
+        }
+
         public String getName()
         {
-            return haveC1Bytes? "windows-1255" : "ISO-8859-8";
+            return "ISO-8859-8";
+        }
+
+        String getC1Name()
+        {
+            return "windows-1255";
         }
     }
     
@@ -786,7 +1014,12 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
 
         public String getName()
         {
-            return haveC1Bytes? "windows-1255" : /*"ISO-8859-8-I"*/ "ISO-8859-8";
+            return /*"ISO-8859-8-I"*/ "ISO-8859-8";
+        }
+
+        String getC1Name()
+        {
+            return "windows-1255";
         }
 
         public String getLanguage()
@@ -794,9 +1027,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "he";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_8_I_he()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -814,9 +1047,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "he";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_8_he()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -857,9 +1090,21 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             (byte) 0xF8, (byte) 0xF9, (byte) 0xFA, (byte) 0xFB, (byte) 0xFC, (byte) 0xFD, (byte) 0xFE, (byte) 0xFF, 
         };
 
+        protected static final NGramFamily family = new NGramFamily(byteMap, (byte)0x20);
+
+        CharsetRecog_8859_9(int[] ngrams)
+        {
+            super(family, ngrams);
+        }
+
         public String getName()
         {
-            return haveC1Bytes? "windows-1254" : "ISO-8859-9";
+            return "ISO-8859-9";
+        }
+
+        String getC1Name()
+        {
+            return "windows-1254";
         }
     }
     
@@ -877,9 +1122,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "tr";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_8859_9_tr()
         {
-            return match(det, ngrams, byteMap);
+            super(ngrams);
         }
     }
     
@@ -927,6 +1172,8 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             (byte) 0xF8, (byte) 0xF9, (byte) 0xFA, (byte) 0xFB, (byte) 0xFC, (byte) 0xFD, (byte) 0xFE, (byte) 0xFF, 
         };
 
+        private static final NGramFamily family = new NGramFamily(byteMap, (byte)0x20);
+
         public String getName()
         {
             return  "windows-1251";
@@ -937,9 +1184,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "ru";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_windows_1251()
         {
-            return match(det, ngrams, byteMap);
+            super(family, ngrams);
         }
     }
     
@@ -987,6 +1234,8 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             (byte) 0x20, (byte) 0xF9, (byte) 0x20, (byte) 0xFB, (byte) 0xFC, (byte) 0x20, (byte) 0x20, (byte) 0xFF, 
         };
 
+        private static final NGramFamily family = new NGramFamily(byteMap, (byte)0x20);
+
         public String getName()
         {
             return  "windows-1256";
@@ -997,9 +1246,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "ar";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_windows_1256()
         {
-            return match(det, ngrams, byteMap);
+            super(family, ngrams);
         }
     }
         
@@ -1046,6 +1295,8 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             (byte) 0xD0, (byte) 0xD1, (byte) 0xD2, (byte) 0xD3, (byte) 0xD4, (byte) 0xD5, (byte) 0xD6, (byte) 0xD7, 
             (byte) 0xD8, (byte) 0xD9, (byte) 0xDA, (byte) 0xDB, (byte) 0xDC, (byte) 0xDD, (byte) 0xDE, (byte) 0xDF, 
         };
+
+        private static final NGramFamily family = new NGramFamily(byteMap, (byte)0x20);
         
         public String getName()
         {
@@ -1057,9 +1308,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return "ru";
         }
         
-        public int match(CharsetDetector det)
+        CharsetRecog_KOI8_R()
         {
-            return match(det, ngrams, byteMap);
+            super(family, ngrams);
         }
     }
     
@@ -1085,6 +1336,13 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
 /* F- */    (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, 
         };
 
+        protected static final NGramFamily family = new NGramFamily(byteMap, (byte)0x40);
+
+        CharsetRecog_IBM424_he(int[] ngrams)
+        {
+            super(family, ngrams);
+        }
+
         public String getLanguage()
         {
             return "he";
@@ -1102,9 +1360,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             0x514540, 0x514671, 0x515155, 0x515540, 0x515740, 0x516840, 0x517140, 0x544041, 0x544045, 0x544140, 0x544540, 0x554041, 0x554042, 0x554045, 0x554054, 0x554056, 
             0x554069, 0x564540, 0x574045, 0x584540, 0x585140, 0x585155, 0x625440, 0x684045, 0x685155, 0x695440, 0x714041, 0x714042, 0x714045, 0x714054, 0x714056, 0x714069, 
         };
-        public int match(CharsetDetector det)
+        CharsetRecog_IBM424_he_rtl()
         {
-            return match(det, ngrams, byteMap, (byte)0x40);
+            super(ngrams);
         }
     }
     static class CharsetRecog_IBM424_he_ltr extends CharsetRecog_IBM424_he 
@@ -1120,9 +1378,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             0x555151, 0x555158, 0x555168, 0x564045, 0x564055, 0x564071, 0x564240, 0x564540, 0x624540, 0x694045, 0x694055, 0x694071, 0x694540, 0x714140, 0x714540, 0x714651
 
         };
-        public int match(CharsetDetector det)
+        CharsetRecog_IBM424_he_ltr()
         {
-            return match(det, ngrams, byteMap, (byte)0x40);
+            super(ngrams);
         }
     }
     
@@ -1130,7 +1388,6 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
     {
         //arabic shaping class, method shape/unshape
         protected static ArabicShaping as = new ArabicShaping(ArabicShaping.LETTERS_UNSHAPE);
-        protected byte[] prev_fInputBytes = null;
 
         protected static byte[] byteMap = {
 /*                 -0           -1           -2           -3           -4           -5           -6           -7           -8           -9           -A           -B           -C           -D           -E           -F   */
@@ -1151,6 +1408,8 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
 /* E- */    (byte) 0x40, (byte) 0x40, (byte) 0xA2, (byte) 0xA3, (byte) 0xA4, (byte) 0xA5, (byte) 0xA6, (byte) 0xA7, (byte) 0xA8, (byte) 0xA9, (byte) 0xEA, (byte) 0xEB, (byte) 0x40, (byte) 0xED, (byte) 0xEE, (byte) 0xEF, 
 /* F- */    (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0x40, (byte) 0xFB, (byte) 0xFC, (byte) 0xFD, (byte) 0xFE, (byte) 0x40, 
         };
+
+        protected static final NGramFamily family = new NGramFamily(byteMap, (byte)0x40);
         
         protected static byte[] unshapeMap = {
 /*                 -0           -1           -2           -3           -4           -5           -6           -7           -8           -9           -A           -B           -C           -D           -E           -F   */
@@ -1176,14 +1435,19 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
         {
             return "ar";
         }
-        protected void matchInit(CharsetDetector det) 
+        CharsetRecog_IBM420_ar(int[] ngrams)
         {
-            assert prev_fInputBytes == null;
-            prev_fInputBytes = new byte[det.fInputLen];
-            System.arraycopy(det.fInputBytes, 0, prev_fInputBytes, 0, det.fInputLen);
-            byte bb[] = unshape(prev_fInputBytes);
-            System.arraycopy(bb, 0, det.fInputBytes, 0, bb.length);
-            det.fInputLen = bb.length;
+            super(family, ngrams);
+        }
+        
+        /*
+         * Score the unshaped input text. The input of the detector is not modified,
+         * so that the recognizer can be shared by concurrent detections.
+         */
+        void score(CharsetDetector det)
+        {
+            byte bb[] = unshape(det.fInputBytes, det.fInputLen);
+            family.score(det, bb, bb.length);
         }
         
         /*
@@ -1193,22 +1457,22 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
          * on CharsetICU which we try to avoid. IBM420 converter amongst different versions
          * of JDK can produce different results and therefore is also avoided.
          */
-        private byte[] unshape(byte[] inputBytes) {
-            byte resultByteArr[] = unshapeLamAlef(inputBytes);
+        private byte[] unshape(byte[] inputBytes, int inputLen) {
+            byte resultByteArr[] = unshapeLamAlef(inputBytes, inputLen);
             
-            for (int i=0; i<inputBytes.length; i++){
+            for (int i=0; i<inputLen; i++){
                 resultByteArr[i] = unshapeMap[resultByteArr[i]& 0xFF];
             }
             return resultByteArr;
         }
 
-        private byte[] unshapeLamAlef(byte[] inputBytes) {
-            ByteBuffer resultBigBuffer =  ByteBuffer.allocate(inputBytes.length*2);
+        private byte[] unshapeLamAlef(byte[] inputBytes, int inputLen) {
+            ByteBuffer resultBigBuffer =  ByteBuffer.allocate(inputLen*2);
             ByteBuffer resultBuffer;
             byte unshapedLamAlef[] = {(byte)0xb1, (byte)0x56};
 
            
-            for (int i=0; i<inputBytes.length; i++){
+            for (int i=0; i<inputLen; i++){
                 if (isLamAlef(inputBytes[i]))
                     resultBigBuffer.put(unshapedLamAlef);
                 else
@@ -1227,14 +1491,6 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
             return false;
         }
         
-        protected void matchFinish(CharsetDetector det) {
-            if (prev_fInputBytes != null) {
-                System.arraycopy(prev_fInputBytes, 0, det.fInputBytes, 0, prev_fInputBytes.length);
-                det.fInputLen = prev_fInputBytes.length;
-                prev_fInputBytes = null;
-            }
-        }
-        
     }
     static class CharsetRecog_IBM420_ar_rtl extends CharsetRecog_IBM420_ar 
     {
@@ -1249,12 +1505,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
         {
             return "IBM420_rtl";
         }
-        public int match(CharsetDetector det)
+        CharsetRecog_IBM420_ar_rtl()
         {
-            matchInit(det);
-            int result =  match(det, ngrams, byteMap, (byte)0x40);
-            matchFinish(det);
-            return result;
+            super(ngrams);
         }
         
     }
@@ -1271,12 +1524,9 @@ abstract class CharsetRecog_sbcs extends CharsetRecognizer {
         {
             return "IBM420_ltr";
         }
-        public int match(CharsetDetector det)
+        CharsetRecog_IBM420_ar_ltr()
         {
-            matchInit(det);
-            int result = match(det, ngrams, byteMap, (byte)0x40);
-            matchFinish(det);
-            return result;
+            super(ngrams);
         }
         
     }
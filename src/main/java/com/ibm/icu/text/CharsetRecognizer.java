@@ -27,6 +27,16 @@ abstract class CharsetRecognizer {
      */
     abstract String      getName();
     
+    /**
+     * Get the name of this charset when the input text has C1 bytes (0x80 - 0x9F) :
+     * some single-byte encodings are reported as their windows variant.
+     * @return the charset name.
+     */
+    String      getC1Name()
+    {
+        return getName();
+    }
+    
     /**
      * Get the ISO language code for this charset.
      * @return the language code, or <code>null</code> if the language cannot be determined.
@@ -42,12 +52,25 @@ abstract class CharsetRecognizer {
      * 
      * @param det  The CharsetDetector, which contains the input text
      *             to be checked for being in this charset.
-     * @return     Two values packed into one int  (Damn java, anyhow)
-     *             <br/>
-     *             bits 0-7:  the match confidence, ranging from 0-100
-     *             <br/>
-     *             bits 8-15: The match reason, an enum-like value.
+     * @return     The confidence (1-100), or 0 if there is no match.
+     *             The result only depends on the input text : recognizers do
+     *             not keep any state about the match, so the same instance can
+     *             be used by several threads at the same time.
      */
-    abstract int         match(CharsetDetector det);
+    abstract int match(CharsetDetector det);
+    
+    /**
+     * Test whether the input text could match this charset, from the byte
+     *      statistics of the CharsetDetector, without running the match.
+     *      It must return <code>true</code> whenever match() could return a
+     *      match : a recognizer which is not plausible is skipped.
+     * 
+     * @param det  The CharsetDetector, after its byte statistics are collected.
+     * @return     <code>false</code> if match() would return 0.
+     */
+    boolean isPlausible(CharsetDetector det)
+    {
+        return true;
+    }
 
 }
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+/**
+ * Recognize binary files from their first bytes, before any encoding
+ * detection : known magic numbers first, then the density of NUL and control
+ * bytes.
+ *
+ * NUL and control bytes alone do not make a binary file : UTF-16 and UTF-32
+ * texts have them too (high bytes of the code units, such as 0x00 for Latin
+ * letters or 0x04 for Cyrillic ones). Files starting with a Unicode BOM are
+ * texts. Without BOM, these bytes are mostly at even or at odd positions for
+ * UTF-16, and hardly ever at one of the positions modulo 4 for UTF-32, while
+ * those of binary data are spread evenly.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+final class BinaryClassifier {
+
+	/**
+	 * Magic numbers of common binary formats.
+	 */
+	private static final byte[][] MAGIC_NUMBERS = {
+			{ (byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A },
+			{ 'P', 'K', 0x03, 0x04 }, { 'P', 'K', 0x05, 0x06 },
+			{ 'P', 'K', 0x07, 0x08 }, { '%', 'P', 'D', 'F', '-' },
+			{ 0x7F, 'E', 'L', 'F' },
+			{ (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE },
+			{ 0x1F, (byte) 0x8B }, { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF },
+			{ 'G', 'I', 'F', '8' } };
+
+	/**
+	 * Formats of the magic numbers.
+	 */
+	private static final String[] FORMATS = { "PNG image", "ZIP archive",
+			"ZIP archive", "ZIP archive", "PDF document", "ELF executable",
+			"Java class", "gzip archive", "JPEG image", "GIF image" };
+
+	/**
+	 * Byte order marks of Unicode texts (UTF-32LE starts as UTF-16LE).
+	 */
+	private static final byte[][] BOMS = {
+			{ (byte) 0xEF, (byte) 0xBB, (byte) 0xBF },
+			{ (byte) 0xFF, (byte) 0xFE }, { (byte) 0xFE, (byte) 0xFF },
+			{ 0x00, 0x00, (byte) 0xFE, (byte) 0xFF } };
+
+	/**
+	 * Format reported when binary data is recognized from its bytes.
+	 */
+	static final String DATA = "data";
+
+	/**
+	 * Control bytes (other than NUL, tabs, line and page breaks, SO and SI
+	 * after an ISO-2022 designation, SUB and ESC) allowed in text, in percent
+	 * of the bytes.
+	 */
+	private static final int MAX_CONTROL_PERCENT = 5;
+
+	/**
+	 * NUL bytes of binary data, in percent of the bytes (fewer NUL bytes are
+	 * seen in UTF-16 texts of Asian languages, from code units such as
+	 * U+4E00).
+	 */
+	private static final int MIN_NUL_PERCENT = 10;
+
+	/**
+	 * NUL and control bytes of UTF-32 texts, in percent of the bytes (two
+	 * high bytes of each code unit ; random data has about 10 percent).
+	 */
+	private static final int MIN_UTF32_PERCENT = 25;
+
+	/**
+	 * Spread of NUL (and control) bytes of binary data : at least 1 /
+	 * SPREAD as many at the even (or odd) positions as at the others, and at
+	 * the position modulo 4 which has the fewest of them as on average.
+	 */
+	private static final int SPREAD = 3;
+
+	/**
+	 * ESC $ ) : designation of the G1 set of ISO-2022-KR and ISO-2022-CN,
+	 * which SO and SI shift in and out.
+	 */
+	private static final byte[] DESIGNATE_G1 = { 0x1B, '$', ')' };
+
+	private BinaryClassifier() {
+	}
+
+	/**
+	 * Classify the first bytes of a file.
+	 *
+	 * @param sample
+	 *            First bytes of the file.
+	 * @param length
+	 *            Number of bytes in sample.
+	 * @return Format of the binary file, or null if it may be a text.
+	 */
+	static String classify(byte[] sample, int length) {
+		for (int i = 0; i < MAGIC_NUMBERS.length; i++) {
+			if (startsWith(sample, length, MAGIC_NUMBERS[i])) {
+				return FORMATS[i];
+			}
+		}
+		for (byte[] bom : BOMS) {
+			if (startsWith(sample, length, bom)) {
+				return null;
+			}
+		}
+
+		// NUL bytes and other control bytes by position modulo 4
+		boolean shifts = contains(sample, length, DESIGNATE_G1);
+		int[] nuls = new int[4];
+		int[] controls = new int[4];
+		for (int i = 0; i < length; i++) {
+			int b = sample[i];
+			if (b == 0) {
+				nuls[i & 3]++;
+			} else if (b >= 0 && b < 0x20 && !isTextControl(b, shifts)) {
+				controls[i & 3]++;
+			}
+		}
+		int[] lows = new int[4];
+		for (int i = 0; i < 4; i++) {
+			lows[i] = nuls[i] + controls[i];
+		}
+		if (isUnicodeLayout(lows, length)) {
+			return null;
+		}
+		int nulCount = sum(nuls);
+		if (nulCount * 100 >= length * MIN_NUL_PERCENT && isSpread(nuls)) {
+			return DATA;
+		}
+		if ((long) sum(controls) * 100 > (long) length * MAX_CONTROL_PERCENT) {
+			return DATA;
+		}
+		return null;
+	}
+
+	/**
+	 * @param lows
+	 *            NUL and control bytes counted by position modulo 4.
+	 * @return True if they are the high bytes of UTF-16 code units (mostly at
+	 *         even or at odd positions), or of UTF-32 code units (dense, and
+	 *         hardly ever at one of the positions modulo 4).
+	 */
+	private static boolean isUnicodeLayout(int[] lows, int length) {
+		int total = sum(lows);
+		if ((long) total * 100 <= (long) length * MAX_CONTROL_PERCENT) {
+			// too few to be binary data anyway
+			return false;
+		}
+		int even = lows[0] + lows[2];
+		int odd = lows[1] + lows[3];
+		if (Math.min(even, odd) * SPREAD < Math.max(even, odd)) {
+			return true;
+		}
+		int fewest = Math.min(Math.min(lows[0], lows[1]),
+				Math.min(lows[2], lows[3]));
+		return (long) total * 100 >= (long) length * MIN_UTF32_PERCENT
+				&& fewest * 4 * SPREAD < total;
+	}
+
+	/**
+	 * @param counts
+	 *            Bytes counted by position modulo 4.
+	 * @return True if the bytes are at even as well as at odd positions, and
+	 *         at each position modulo 4 (always false without byte).
+	 */
+	private static boolean isSpread(int[] counts) {
+		int total = sum(counts);
+		int even = counts[0] + counts[2];
+		int odd = counts[1] + counts[3];
+		int fewest = Math.min(Math.min(counts[0], counts[1]),
+				Math.min(counts[2], counts[3]));
+		return total > 0 && Math.min(even, odd) * SPREAD >= Math.max(even, odd)
+				&& fewest * 4 * SPREAD >= total;
+	}
+
+	private static int sum(int[] counts) {
+		return counts[0] + counts[1] + counts[2] + counts[3];
+	}
+
+	/**
+	 * @param shifts
+	 *            True if the sample designates an ISO-2022 G1 set.
+	 * @return True for tab, line feed, vertical tab, form feed, carriage
+	 *         return, SO and SI (shifts of ISO-2022-KR and ISO-2022-CN, only
+	 *         with shifts), SUB (end of old DOS files) and ESC (ISO-2022
+	 *         encodings, terminal colors).
+	 */
+	private static boolean isTextControl(int b, boolean shifts) {
+		return (b >= 0x09 && b <= 0x0D) || b == 0x1A || b == 0x1B
+				|| (shifts && (b == 0x0E || b == 0x0F));
+	}
+
+	private static boolean contains(byte[] sample, int length, byte[] bytes) {
+		for (int i = 0; i + bytes.length <= length; i++) {
+			int j = 0;
+			while (j < bytes.length && sample[i + j] == bytes[j]) {
+				j++;
+			}
+			if (j == bytes.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean startsWith(byte[] sample, int length, byte[] magic) {
+		if (length < magic.length) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if (sample[i] != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
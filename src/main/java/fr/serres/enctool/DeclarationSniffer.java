@@ -0,0 +1,258 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Find the encoding declared by the first bytes of a file : BOM, XML
+ * declaration, CSS @charset rule, HTML meta tag, or coding cookie of Python,
+ * Ruby, Emacs and Vim in the first two lines.
+ *
+ * A declaration is only trusted if the sample can be decoded with the
+ * declared encoding, and a sample declared in another encoding than UTF-8 must
+ * not be valid UTF-8 with non ASCII characters (a common mistake).
+ *
+ * A sniffer is not thread-safe.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+class DeclarationSniffer {
+
+	/**
+	 * Bytes searched for a declaration (HTML meta tags must be in the first
+	 * 1024 bytes).
+	 */
+	private static final int DECLARATION_SIZE = 1024;
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Byte order marks, longest first (the UTF-32LE one starts with the
+	 * UTF-16LE one).
+	 */
+	private static final byte[][] BOMS = {
+			{ (byte) 0xEF, (byte) 0xBB, (byte) 0xBF },
+			{ (byte) 0xFF, (byte) 0xFE, 0x00, 0x00 },
+			{ 0x00, 0x00, (byte) 0xFE, (byte) 0xFF },
+			{ (byte) 0xFF, (byte) 0xFE }, { (byte) 0xFE, (byte) 0xFF } };
+
+	/**
+	 * Encodings of the byte order marks.
+	 */
+	private static final String[] BOM_ENCODINGS = { "UTF-8", "UTF-32LE",
+			"UTF-32BE", "UTF-16LE", "UTF-16BE" };
+
+	private static final Pattern XML_DECLARATION = Pattern
+			.compile("<\\?xml\\s[^>]*?encoding\\s*=\\s*[\"']([^\"'>]+)[\"']");
+
+	private static final Pattern CSS_CHARSET = Pattern
+			.compile("@charset\\s+\"([^\"]+)\";");
+
+	private static final Pattern CODING_COOKIE = Pattern
+			.compile("(?:#|-\\*-)[^\n]*?coding[:=]\\s*([-\\w.]+)");
+
+	private static final Pattern META_CHARSET = Pattern.compile(
+			"<meta\\s[^>]*?charset\\s*=\\s*[\"']?([^\"'\\s;/>]+)",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Suffixes of Emacs coding systems (end of line conversion).
+	 */
+	private static final Pattern EMACS_EOL = Pattern.compile(
+			"-(?:unix|dos|mac)$", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Characters encoded as ASCII bytes by the encodings which can be
+	 * declared inside the text.
+	 */
+	private static final String ASCII_PROBE = "<?xml encoding=\"\"?>";
+
+	private static final byte[] ASCII_PROBE_BYTES = ASCII_PROBE
+			.getBytes(StandardCharsets.US_ASCII);
+
+	private final CharsetDecoder utf8Decoder = newDecoder(
+			StandardCharsets.UTF_8);
+
+	/**
+	 * Decoder of the last declared encoding.
+	 */
+	private CharsetDecoder decoder;
+
+	private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * Find the declared encoding of a sample and check it.
+	 *
+	 * @param sample
+	 *            First bytes of a file.
+	 * @param length
+	 *            Number of bytes in sample.
+	 * @return Name of the declared encoding, or null if there is no
+	 *         declaration or if the sample does not match it.
+	 */
+	String sniff(byte[] sample, int length) {
+		for (int i = 0; i < BOMS.length; i++) {
+			if (startsWith(sample, length, BOMS[i])) {
+				Charset charset = Charset.forName(BOM_ENCODINGS[i]);
+				if (!this.decodes(charset, sample, BOMS[i].length, length)) {
+					return null;
+				}
+				return charset.name();
+			}
+		}
+
+		String label = findLabel(sample, length);
+		if (label == null) {
+			return null;
+		}
+		Charset charset = forLabel(label);
+		if (charset == null || !charset.canEncode()
+				|| !Arrays.equals(ASCII_PROBE.getBytes(charset),
+						ASCII_PROBE_BYTES)) {
+			// the declaration itself is not written in this encoding
+			return null;
+		}
+		if (!"UTF-8".equals(charset.name()) && hasNonAscii(sample, length)
+				&& this.decodes(StandardCharsets.UTF_8, sample, 0, length)) {
+			// UTF-8 file declared in a legacy encoding
+			return null;
+		}
+		return this.decodes(charset, sample, 0, length) ? charset.name()
+				: null;
+	}
+
+	/**
+	 * @return Encoding name of the first declaration found, or null.
+	 */
+	private static String findLabel(byte[] sample, int length) {
+		String head = new String(sample, 0,
+				Math.min(length, DECLARATION_SIZE), StandardCharsets.ISO_8859_1);
+		Matcher matcher = XML_DECLARATION.matcher(head);
+		if (matcher.lookingAt()) {
+			return matcher.group(1);
+		}
+		matcher = CSS_CHARSET.matcher(head);
+		if (matcher.lookingAt()) {
+			return matcher.group(1);
+		}
+
+		// coding cookies are in the first two lines
+		int lineEnd = head.indexOf('\n');
+		if (lineEnd >= 0) {
+			lineEnd = head.indexOf('\n', lineEnd + 1);
+		}
+		matcher = CODING_COOKIE.matcher(head);
+		matcher.region(0, lineEnd >= 0 ? lineEnd : head.length());
+		if (matcher.find()) {
+			return matcher.group(1);
+		}
+
+		matcher = META_CHARSET.matcher(head);
+		if (matcher.find()) {
+			return matcher.group(1);
+		}
+		return null;
+	}
+
+	/**
+	 * @return Encoding of a declared name (Emacs names such as latin-1 or
+	 *         utf-8-unix are accepted), or null if it is not supported.
+	 */
+	private static Charset forLabel(String label) {
+		String name = EMACS_EOL.matcher(label.trim()).replaceFirst("");
+		try {
+			return Charset.forName(name);
+		} catch (IllegalArgumentException e) {
+			// illegal or unsupported name : try without separators
+		}
+		try {
+			return Charset.forName(name.replace("-", ""));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Decode a sample, without keeping the characters. An incomplete sequence
+	 * at the end of the sample is not an error (the sample may cut it).
+	 *
+	 * @return False at the first malformed or unmappable input.
+	 */
+	private boolean decodes(Charset charset, byte[] sample, int offset,
+			int length) {
+		CharsetDecoder decoderTmp;
+		if (StandardCharsets.UTF_8.equals(charset)) {
+			decoderTmp = this.utf8Decoder;
+		} else {
+			if (this.decoder == null || !this.decoder.charset().equals(charset)) {
+				this.decoder = newDecoder(charset);
+			}
+			decoderTmp = this.decoder;
+		}
+		decoderTmp.reset();
+		ByteBuffer in = ByteBuffer.wrap(sample, offset, length - offset);
+		CoderResult result;
+		do {
+			this.chars.clear();
+			result = decoderTmp.decode(in, this.chars, false);
+		} while (result.isOverflow());
+		return !result.isError();
+	}
+
+	private static CharsetDecoder newDecoder(Charset charset) {
+		return charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+	}
+
+	private static boolean hasNonAscii(byte[] sample, int length) {
+		for (int i = 0; i < length; i++) {
+			if (sample[i] < 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean startsWith(byte[] sample, int length, byte[] bom) {
+		if (length < bom.length) {
+			return false;
+		}
+		for (int i = 0; i < bom.length; i++) {
+			if (sample[i] != bom[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
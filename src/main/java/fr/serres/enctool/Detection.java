@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+/**
+ * Result of the encoding detection of a file : matching encodings, best match
+ * first, and UTF-8 BOM presence, or format of a binary file.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class Detection {
+
+	/**
+	 * Encoding names.
+	 */
+	final String[] names;
+
+	/**
+	 * Confidences [0-100].
+	 */
+	final int[] confidences;
+
+	/**
+	 * Languages (ISO code or null).
+	 */
+	final String[] languages;
+
+	/**
+	 * True if the file starts with an UTF-8 BOM.
+	 */
+	final boolean bom;
+
+	/**
+	 * Format of a binary file (no encoding is detected), or null.
+	 */
+	final String binary;
+
+	Detection(String[] names, int[] confidences, String[] languages,
+			boolean bom) {
+		this.names = names;
+		this.confidences = confidences;
+		this.languages = languages;
+		this.bom = bom;
+		this.binary = null;
+	}
+
+	/**
+	 * @param binary
+	 *            Format of the binary file.
+	 */
+	Detection(String binary) {
+		this.names = new String[0];
+		this.confidences = new int[0];
+		this.languages = new String[0];
+		this.bom = false;
+		this.binary = binary;
+	}
+
+	/**
+	 * @return Number of matching encodings.
+	 */
+	int size() {
+		return this.names.length;
+	}
+
+	/**
+	 * @return Encoding with the highest confidence or null if no encoding
+	 *         matches.
+	 */
+	String getName() {
+		return this.names.length > 0 ? this.names[0] : null;
+	}
+
+}
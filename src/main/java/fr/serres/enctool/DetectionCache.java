@@ -0,0 +1,491 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent index of detected encodings, used to skip detection of files not
+ * modified since the previous scan.
+ *
+ * The index is a memory-mapped file : a header holding the names table
+ * (encodings and languages), followed by an open-addressing hash table of
+ * fixed size slots (linear probing). A slot is keyed by a 64 bits hash of the
+ * absolute path, checked with a second hash computed differently, and is
+ * valid only while size, modification time and file key (device and inode) of
+ * the file are unchanged. Only the 3 best matches are kept. The table is
+ * rebuilt twice bigger in a new file when it is 3/4 full.
+ *
+ * The index is thread-safe. Processes sharing an index are serialized by a
+ * lock on a sibling ".lock" file : a second process waits until the first one
+ * closes the index.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class DetectionCache implements DetectionStore, Closeable {
+
+	/**
+	 * Number of matches kept by file.
+	 */
+	static final int MAX_MATCHES = 3;
+
+	/**
+	 * "ENCIDX01"
+	 */
+	private static final long MAGIC = 0x454E434944583031L;
+
+	private static final int HEADER_SIZE = 4096;
+	private static final int HEADER_CAPACITY = 8;
+	private static final int HEADER_COUNT = 12;
+	private static final int HEADER_NAME_COUNT = 16;
+	private static final int HEADER_NAMES = 20;
+
+	/**
+	 * Names table entry : length byte followed by ASCII characters.
+	 */
+	private static final int NAME_SIZE = 32;
+	private static final int MAX_NAMES = (HEADER_SIZE - HEADER_NAMES)
+			/ NAME_SIZE;
+
+	private static final int SLOT_SIZE = 64;
+	private static final int SLOT_KEY = 0;
+	private static final int SLOT_SIZE_BYTES = 8;
+	private static final int SLOT_MTIME = 16;
+	private static final int SLOT_FILE_KEY = 24;
+	private static final int SLOT_BOM = 32;
+	private static final int SLOT_MATCH_COUNT = 33;
+	/**
+	 * Matches : name id, language id (0 if none), confidence.
+	 */
+	private static final int SLOT_MATCHES = 34;
+	private static final int MATCH_SIZE = 6;
+	/**
+	 * Second hash of the path : a slot whose key collides is not used.
+	 */
+	private static final int SLOT_CHECK = 56;
+
+	/**
+	 * Slots are mapped by segments of 64 MB.
+	 */
+	private static final int SEGMENT_BITS = 20;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_BITS) - 1;
+
+	private static final int INITIAL_CAPACITY = 1 << 12;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final Path file;
+
+	/**
+	 * Lock file, held while the index is open (the index file itself is
+	 * replaced when the table grows).
+	 */
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+
+	private FileChannel channel;
+	private MappedByteBuffer header;
+	private MappedByteBuffer[] segments;
+
+	/**
+	 * Number of slots (power of 2).
+	 */
+	private int capacity;
+
+	/**
+	 * Number of used slots.
+	 */
+	private int count;
+
+	private final List<String> names = new ArrayList<String>();
+	private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+
+	/**
+	 * Open an index, created if it does not exist. Wait until other
+	 * processes using it close it.
+	 *
+	 * @param file
+	 *            Index file.
+	 * @throws IOException
+	 *             If the file can not be opened or is not an index.
+	 */
+	public DetectionCache(String file) throws IOException {
+		this.file = Paths.get(file).toAbsolutePath();
+		this.lockChannel = FileChannel.open(
+				this.file.resolveSibling(this.file.getFileName() + ".lock"),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		boolean ok = false;
+		FileLock lockTmp = null;
+		try {
+			lockTmp = this.lockChannel.lock();
+			this.channel = FileChannel.open(this.file,
+					StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			try {
+				if (this.channel.size() == 0) {
+					this.init(INITIAL_CAPACITY);
+				} else {
+					this.load();
+				}
+				ok = true;
+			} finally {
+				if (!ok) {
+					this.channel.close();
+				}
+			}
+		} finally {
+			if (!ok) {
+				// also releases the lock
+				this.lockChannel.close();
+			}
+		}
+		this.lock = lockTmp;
+	}
+
+	/**
+	 * Detection of a file, if the file is indexed and was not modified.
+	 *
+	 * @param path
+	 *            Absolute path of the file.
+	 * @param attrs
+	 *            Current attributes of the file.
+	 * @return Detection or null.
+	 */
+	@Override
+	public synchronized Detection get(String path, BasicFileAttributes attrs) {
+		long key = key(path);
+		long slot = this.find(key);
+		MappedByteBuffer segment = this.segment(slot);
+		int pos = position(slot);
+		if (segment.getLong(pos + SLOT_KEY) != key
+				|| segment.getLong(pos + SLOT_CHECK) != check(path)
+				|| segment.getLong(pos + SLOT_SIZE_BYTES) != attrs.size()
+				|| segment.getLong(pos + SLOT_MTIME) != mtime(attrs)
+				|| segment.getLong(pos + SLOT_FILE_KEY) != fileKey(attrs)) {
+			return null;
+		}
+		int size = segment.get(pos + SLOT_MATCH_COUNT);
+		String[] matchNames = new String[size];
+		int[] confidences = new int[size];
+		String[] languages = new String[size];
+		for (int i = 0; i < size; i++) {
+			int matchPos = pos + SLOT_MATCHES + i * MATCH_SIZE;
+			matchNames[i] = this.names.get(segment.getShort(matchPos));
+			int language = segment.getShort(matchPos + 2);
+			if (language > 0) {
+				languages[i] = this.names.get(language - 1);
+			}
+			confidences[i] = segment.getShort(matchPos + 4);
+		}
+		return new Detection(matchNames, confidences, languages,
+				segment.get(pos + SLOT_BOM) != 0);
+	}
+
+	/**
+	 * Index the detection of a file.
+	 *
+	 * @param path
+	 *            Absolute path of the file.
+	 * @param attrs
+	 *            Attributes of the file read before detection.
+	 * @param detection
+	 *            Detection.
+	 * @throws IOException
+	 *             If the index can not be enlarged.
+	 */
+	@Override
+	public synchronized void put(String path, BasicFileAttributes attrs,
+			Detection detection) throws IOException {
+		int size = Math.min(detection.size(), MAX_MATCHES);
+		short[] ids = new short[size * 2];
+		for (int i = 0; i < size; i++) {
+			ids[i * 2] = this.nameId(detection.names[i]);
+			short language = detection.languages[i] != null ? this
+					.nameId(detection.languages[i]) : -1;
+			ids[i * 2 + 1] = (short) (language + 1);
+			if (ids[i * 2] < 0
+					|| (detection.languages[i] != null && language < 0)) {
+				// names table is full
+				return;
+			}
+		}
+
+		long key = key(path);
+		long slot = this.find(key);
+		if (this.segment(slot).getLong(position(slot) + SLOT_KEY) != key) {
+			// new file
+			if ((this.count + 1L) * 4 > this.capacity * 3L) {
+				if (this.capacity == MAX_CAPACITY) {
+					return;
+				}
+				this.grow();
+				slot = this.find(key);
+			}
+			this.count++;
+			this.header.putInt(HEADER_COUNT, this.count);
+		}
+
+		MappedByteBuffer segment = this.segment(slot);
+		int pos = position(slot);
+		segment.putLong(pos + SLOT_SIZE_BYTES, attrs.size());
+		segment.putLong(pos + SLOT_MTIME, mtime(attrs));
+		segment.putLong(pos + SLOT_FILE_KEY, fileKey(attrs));
+		segment.putLong(pos + SLOT_CHECK, check(path));
+		segment.put(pos + SLOT_BOM, (byte) (detection.bom ? 1 : 0));
+		segment.put(pos + SLOT_MATCH_COUNT, (byte) size);
+		for (int i = 0; i < size; i++) {
+			int matchPos = pos + SLOT_MATCHES + i * MATCH_SIZE;
+			segment.putShort(matchPos, ids[i * 2]);
+			segment.putShort(matchPos + 2, ids[i * 2 + 1]);
+			segment.putShort(matchPos + 4, (short) detection.confidences[i]);
+		}
+		// key last : slot is complete when found
+		segment.putLong(pos + SLOT_KEY, key);
+	}
+
+	/**
+	 * Write the index on disk, close it and release the lock.
+	 *
+	 * @throws IOException
+	 *             In case of IO exception.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			this.header.force();
+			for (MappedByteBuffer segment : this.segments) {
+				segment.force();
+			}
+			this.channel.close();
+		} finally {
+			this.lock.release();
+			this.lockChannel.close();
+		}
+	}
+
+	/**
+	 * Slot holding a key, or empty slot where the key must be added.
+	 */
+	private long find(long key) {
+		int bits = Integer.numberOfTrailingZeros(this.capacity);
+		long slot = (key * GOLDEN_RATIO) >>> (64 - bits);
+		while (true) {
+			long slotKey = this.segment(slot).getLong(
+					position(slot) + SLOT_KEY);
+			if (slotKey == key || slotKey == 0) {
+				return slot;
+			}
+			slot = (slot + 1) & (this.capacity - 1);
+		}
+	}
+
+	private MappedByteBuffer segment(long slot) {
+		return this.segments[(int) (slot >>> SEGMENT_BITS)];
+	}
+
+	private static int position(long slot) {
+		return (int) (slot & SEGMENT_MASK) * SLOT_SIZE;
+	}
+
+	/**
+	 * Id of an encoding or language name, added to the names table if needed.
+	 *
+	 * @return Id or -1 if the names table is full.
+	 */
+	private short nameId(String name) {
+		Integer id = this.nameIds.get(name);
+		if (id == null) {
+			byte[] bytes = name.getBytes(ASCII);
+			if (this.names.size() == MAX_NAMES || bytes.length >= NAME_SIZE) {
+				return -1;
+			}
+			id = this.names.size();
+			int pos = HEADER_NAMES + id * NAME_SIZE;
+			this.header.put(pos, (byte) bytes.length);
+			for (int i = 0; i < bytes.length; i++) {
+				this.header.put(pos + 1 + i, bytes[i]);
+			}
+			this.names.add(name);
+			this.nameIds.put(name, id);
+			this.header.putInt(HEADER_NAME_COUNT, this.names.size());
+		}
+		return id.shortValue();
+	}
+
+	/**
+	 * Initialize an empty index.
+	 */
+	private void init(int newCapacity) throws IOException {
+		this.capacity = newCapacity;
+		this.count = 0;
+		this.map();
+		this.header.putLong(0, MAGIC);
+		this.header.putInt(HEADER_CAPACITY, this.capacity);
+		this.header.putInt(HEADER_COUNT, 0);
+		this.header.putInt(HEADER_NAME_COUNT, 0);
+	}
+
+	/**
+	 * Read an existing index.
+	 */
+	private void load() throws IOException {
+		if (this.channel.size() < HEADER_SIZE) {
+			throw new IOException(this.file + " is not an enctool cache.");
+		}
+		this.header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_SIZE);
+		this.capacity = this.header.getInt(HEADER_CAPACITY);
+		this.count = this.header.getInt(HEADER_COUNT);
+		int nameCount = this.header.getInt(HEADER_NAME_COUNT);
+		if (this.header.getLong(0) != MAGIC || this.capacity <= 0
+				|| this.capacity > MAX_CAPACITY
+				|| Integer.bitCount(this.capacity) != 1
+				|| this.count >= this.capacity || nameCount < 0
+				|| nameCount > MAX_NAMES) {
+			throw new IOException(this.file + " is not an enctool cache.");
+		}
+		for (int id = 0; id < nameCount; id++) {
+			int pos = HEADER_NAMES + id * NAME_SIZE;
+			byte[] bytes = new byte[this.header.get(pos)];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = this.header.get(pos + 1 + i);
+			}
+			String name = new String(bytes, ASCII);
+			this.names.add(name);
+			this.nameIds.put(name, id);
+		}
+		this.map();
+	}
+
+	/**
+	 * Map header and slots of the current capacity.
+	 */
+	private void map() throws IOException {
+		this.header = this.channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_SIZE);
+		int segmentSlots = Math.min(this.capacity, 1 << SEGMENT_BITS);
+		this.segments = new MappedByteBuffer[this.capacity / segmentSlots];
+		for (int i = 0; i < this.segments.length; i++) {
+			this.segments[i] = this.channel.map(FileChannel.MapMode.READ_WRITE,
+					HEADER_SIZE + (long) i * segmentSlots * SLOT_SIZE,
+					(long) segmentSlots * SLOT_SIZE);
+		}
+	}
+
+	/**
+	 * Rebuild the index twice bigger in a new file, which replaces the
+	 * current one.
+	 */
+	private void grow() throws IOException {
+		FileChannel oldChannel = this.channel;
+		MappedByteBuffer oldHeader = this.header;
+		MappedByteBuffer[] oldSegments = this.segments;
+		int oldCapacity = this.capacity;
+
+		Path tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+		this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.init(oldCapacity * 2);
+		for (int i = HEADER_NAME_COUNT; i < HEADER_SIZE; i++) {
+			this.header.put(i, oldHeader.get(i));
+		}
+
+		for (long slot = 0; slot < oldCapacity; slot++) {
+			MappedByteBuffer oldSegment = oldSegments[(int) (slot >>> SEGMENT_BITS)];
+			int oldPos = position(slot);
+			long key = oldSegment.getLong(oldPos + SLOT_KEY);
+			if (key != 0) {
+				long newSlot = this.find(key);
+				MappedByteBuffer segment = this.segment(newSlot);
+				int pos = position(newSlot);
+				for (int i = 0; i < SLOT_SIZE; i++) {
+					segment.put(pos + i, oldSegment.get(oldPos + i));
+				}
+				this.count++;
+			}
+		}
+		this.header.putInt(HEADER_COUNT, this.count);
+
+		oldChannel.close();
+		Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * 64 bits FNV-1a hash of a path (never 0, which marks empty slots).
+	 */
+	private static long key(String path) {
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < path.length(); i++) {
+			hash ^= path.charAt(i);
+			hash *= 0x100000001B3L;
+		}
+		return hash != 0 ? hash : 1;
+	}
+
+	/**
+	 * Second 64 bits hash of a path, independent of the key (other
+	 * multiplier, characters read backwards, final mix).
+	 */
+	private static long check(String path) {
+		long hash = path.length();
+		for (int i = path.length() - 1; i >= 0; i--) {
+			hash = (hash + path.charAt(i)) * 0xC6A4A7935BD1E995L;
+			hash ^= hash >>> 47;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xFF51AFD7ED558CCDL;
+		return hash ^ (hash >>> 33);
+	}
+
+	private static long mtime(BasicFileAttributes attrs) {
+		return attrs.lastModifiedTime().toMillis();
+	}
+
+	/**
+	 * Hash of the file key (device and inode on Unix), 0 if not available.
+	 */
+	private static long fileKey(BasicFileAttributes attrs) {
+		Object key = attrs.fileKey();
+		return key != null ? key.hashCode() : 0;
+	}
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Storage of detections, used to skip detection of files not modified since
+ * they were analysed. Implementations are thread-safe.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public interface DetectionStore {
+
+	/**
+	 * Detection of a file, if it is stored and the file was not modified.
+	 *
+	 * @param path
+	 *            Absolute path of the file.
+	 * @param attrs
+	 *            Current attributes of the file.
+	 * @return Detection or null.
+	 * @throws IOException
+	 *             In case of reading error.
+	 */
+	Detection get(String path, BasicFileAttributes attrs) throws IOException;
+
+	/**
+	 * Store the detection of a file.
+	 *
+	 * @param path
+	 *            Absolute path of the file.
+	 * @param attrs
+	 *            Attributes of the file read before detection.
+	 * @param detection
+	 *            Detection.
+	 * @throws IOException
+	 *             In case of writing error.
+	 */
+	void put(String path, BasicFileAttributes attrs, Detection detection)
+			throws IOException;
+
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodings of files known from their path, read from a rules file. Each line
+ * is a rule :
+ *
+ * <pre>
+ * # comment
+ * *.properties      ISO-8859-1
+ * *.json            UTF-8 check
+ * data/*.sjis.csv   Shift_JIS
+ * build/**          skip
+ * </pre>
+ *
+ * A pattern is a glob, matched against the file name if it has no "/", or
+ * against the path relative to the scanned directory. Patterns starting with
+ * "glob:" or "regex:" are always matched against the relative path. The first
+ * matching rule is used : the encoding is assigned without detection, or only
+ * if the file is valid in it ("check"), or the file is skipped.
+ *
+ * Rules are immutable and shared by threads.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class EncodingRules {
+
+	private static final String SKIP = "skip";
+
+	private static final String CHECK = "check";
+
+	/**
+	 * Rule of a file pattern.
+	 */
+	static final class Rule {
+
+		private final PathMatcher matcher;
+
+		/**
+		 * Pattern matched against the file name only.
+		 */
+		private final boolean nameOnly;
+
+		/**
+		 * Assigned encoding, or null to skip files.
+		 */
+		final String encoding;
+
+		/**
+		 * Assign the encoding only to files valid in it.
+		 */
+		final boolean check;
+
+		Rule(PathMatcher matcher, boolean nameOnly, String encoding,
+				boolean check) {
+			this.matcher = matcher;
+			this.nameOnly = nameOnly;
+			this.encoding = encoding;
+			this.check = check;
+		}
+
+		/**
+		 * @return True if files are skipped.
+		 */
+		boolean isSkip() {
+			return this.encoding == null;
+		}
+
+		boolean matches(Path relative) {
+			if (this.nameOnly) {
+				Path name = relative.getFileName();
+				return name != null && this.matcher.matches(name);
+			}
+			return this.matcher.matches(relative);
+		}
+	}
+
+	private final List<Rule> rules = new ArrayList<Rule>();
+
+	/**
+	 * Read a rules file.
+	 *
+	 * @param file
+	 *            Rules file (UTF-8).
+	 * @throws IOException
+	 *             If the file can not be read or a rule is invalid.
+	 */
+	public EncodingRules(String file) throws IOException {
+		List<String> lines = Files.readAllLines(Paths.get(file),
+				StandardCharsets.UTF_8);
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			if (line.length() == 0 || line.startsWith("#")) {
+				continue;
+			}
+			Rule rule = parse(line);
+			if (rule == null) {
+				throw new IOException(file + " : invalid rule at line "
+						+ (i + 1) + " : " + line);
+			}
+			this.rules.add(rule);
+		}
+	}
+
+	/**
+	 * @return Rule of a line, or null if the line is invalid.
+	 */
+	private static Rule parse(String line) {
+		String[] fields = line.split("\\s+");
+		if (fields.length < 2 || fields.length > 3) {
+			return null;
+		}
+		String pattern = fields[0];
+		boolean check = fields.length == 3;
+		if (check && !CHECK.equalsIgnoreCase(fields[2])) {
+			return null;
+		}
+
+		String encoding = null;
+		if (SKIP.equalsIgnoreCase(fields[1])) {
+			if (check) {
+				return null;
+			}
+		} else {
+			try {
+				encoding = Charset.forName(fields[1]).name();
+			} catch (IllegalArgumentException e) {
+				// illegal or unsupported encoding
+				return null;
+			}
+		}
+
+		boolean nameOnly = false;
+		String syntax = pattern;
+		if (!pattern.startsWith("glob:") && !pattern.startsWith("regex:")) {
+			nameOnly = pattern.indexOf('/') < 0;
+			syntax = "glob:" + pattern;
+		}
+		PathMatcher matcher;
+		try {
+			matcher = FileSystems.getDefault().getPathMatcher(syntax);
+		} catch (IllegalArgumentException e) {
+			// invalid glob or regular expression
+			return null;
+		}
+		return new Rule(matcher, nameOnly, encoding, check);
+	}
+
+	/**
+	 * Find the rule of a file.
+	 *
+	 * @param relative
+	 *            Path of the file, relative to the scanned directory.
+	 * @return First rule matching the file, or null.
+	 */
+	Rule find(Path relative) {
+		for (Rule rule : this.rules) {
+			if (rule.matches(relative)) {
+				return rule;
+			}
+		}
+		return null;
+	}
+
+}
@@ -20,9 +20,12 @@
 
 package fr.serres.enctool;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import com.ibm.icu.text.CharsetDetector;
@@ -50,10 +53,22 @@ public class Enctool {
 		String ouptputLocation = null;
 		String patternFilename = null;
 		String targetEncoding = null;
+		String validEncoding = null;
 		String inputEncoding = null;
 		String path = null;
 		Boolean bom = null;
 		boolean allConfidences = false;
+		int threads = 1;
+		String cacheFile = null;
+		boolean xattr = false;
+		int sampleSize = Engine.SAMPLE_SIZE;
+		boolean sampleWindows = false;
+		boolean sampleProgressive = false;
+		String[] candidates = null;
+		String rulesFile = null;
+		List<String> includes = new ArrayList<String>();
+		List<String> excludes = new ArrayList<String>();
+		boolean ignoreFiles = false;
 
 		if (args != null && args.length > 0) {
 			boolean commandComplete = false;
@@ -61,9 +76,17 @@ public class Enctool {
 			boolean currentOptionIsChangeOutputLocation = false;
 			boolean currentOptionIsPatternFilename = false;
 			boolean currentOptionIsConvert = false;
+			boolean currentOptionIsValidate = false;
 			boolean currentOptionIsForceInputEncoding = false;
 			boolean currentOptionIsWithBOM = false;
 			boolean currentOptionIsWithoutBOM = false;
+			boolean currentOptionIsThreads = false;
+			boolean currentOptionIsCache = false;
+			boolean currentOptionIsSampleSize = false;
+			boolean currentOptionIsCandidates = false;
+			boolean currentOptionIsRules = false;
+			boolean currentOptionIsInclude = false;
+			boolean currentOptionIsExclude = false;
 
 			for (int i = 0; i < args.length; i++) {
 
@@ -113,6 +136,14 @@ public class Enctool {
 							primaryOption = CLOptions.CONVERT_FILES_DIR;
 						}
 						break;
+					case VALIDATE:
+						if (primaryOption != null) {
+							syntaxError = true;
+						} else {
+							currentOptionIsValidate = true;
+							primaryOption = CLOptions.VALIDATE;
+						}
+						break;
 					case FORCE_INPUT_ENCODING:
 						if (primaryOption == null
 								|| (primaryOption != CLOptions.CONVERT_FILE && primaryOption != CLOptions.CONVERT_FILES_DIR)) {
@@ -140,7 +171,8 @@ public class Enctool {
 					case PATTERN_FILENAME:
 						if (primaryOption == null
 								|| (primaryOption != CLOptions.DETECT_ENCODING_DIR
-										&& primaryOption != CLOptions.DETECT_ENCODING_DIR_ADVANCED && primaryOption != CLOptions.CONVERT_FILES_DIR)) {
+										&& primaryOption != CLOptions.DETECT_ENCODING_DIR_ADVANCED
+										&& primaryOption != CLOptions.CONVERT_FILES_DIR && primaryOption != CLOptions.VALIDATE)) {
 							syntaxError = true;
 						} else {
 							currentOptionIsPatternFilename = true;
@@ -171,6 +203,106 @@ public class Enctool {
 							allConfidences = true;
 						}
 						break;
+					case THREADS:
+						if (primaryOption == null
+								|| (primaryOption != CLOptions.DETECT_ENCODING_DIR
+										&& primaryOption != CLOptions.DETECT_ENCODING_DIR_ADVANCED
+										&& primaryOption != CLOptions.CONVERT_FILES_DIR && primaryOption != CLOptions.VALIDATE)) {
+							syntaxError = true;
+						} else {
+							currentOptionIsThreads = true;
+						}
+						break;
+					case CACHE:
+						if (primaryOption == null
+								|| (primaryOption != CLOptions.DETECT_ENCODING_DIR
+										&& primaryOption != CLOptions.DETECT_ENCODING_DIR_ADVANCED && primaryOption != CLOptions.CONVERT_FILES_DIR)
+								|| xattr) {
+							syntaxError = true;
+						} else {
+							currentOptionIsCache = true;
+						}
+						break;
+					case XATTR:
+						if (primaryOption == null
+								|| (primaryOption != CLOptions.DETECT_ENCODING_DIR
+										&& primaryOption != CLOptions.DETECT_ENCODING_DIR_ADVANCED && primaryOption != CLOptions.CONVERT_FILES_DIR)
+								|| cacheFile != null || currentOptionIsCache) {
+							syntaxError = true;
+						} else {
+							xattr = true;
+						}
+						break;
+					case SAMPLE_SIZE:
+						if (primaryOption == null
+								|| primaryOption == CLOptions.SUPPORTED_ENCODINGS
+								|| primaryOption == CLOptions.VERSION) {
+							syntaxError = true;
+						} else {
+							currentOptionIsSampleSize = true;
+						}
+						break;
+					case SAMPLE_WINDOWS:
+						if (primaryOption == null
+								|| primaryOption == CLOptions.SUPPORTED_ENCODINGS
+								|| primaryOption == CLOptions.VERSION) {
+							syntaxError = true;
+						} else {
+							sampleWindows = true;
+						}
+						break;
+					case SAMPLE_PROGRESSIVE:
+						if (primaryOption != CLOptions.DETECT_ENCODING_FILE
+								&& primaryOption != CLOptions.DETECT_ENCODING_FILE_ADVANCED
+								&& primaryOption != CLOptions.DETECT_ENCODING_DIR
+								&& primaryOption != CLOptions.DETECT_ENCODING_DIR_ADVANCED) {
+							syntaxError = true;
+						} else {
+							sampleProgressive = true;
+						}
+						break;
+					case CANDIDATES:
+						if (primaryOption == null
+								|| primaryOption == CLOptions.VALIDATE
+								|| primaryOption == CLOptions.SUPPORTED_ENCODINGS
+								|| primaryOption == CLOptions.VERSION
+								|| candidates != null) {
+							syntaxError = true;
+						} else {
+							currentOptionIsCandidates = true;
+						}
+						break;
+					case RULES:
+						if (primaryOption == null
+								|| (primaryOption != CLOptions.DETECT_ENCODING_DIR
+										&& primaryOption != CLOptions.DETECT_ENCODING_DIR_ADVANCED && primaryOption != CLOptions.CONVERT_FILES_DIR)
+								|| rulesFile != null) {
+							syntaxError = true;
+						} else {
+							currentOptionIsRules = true;
+						}
+						break;
+					case INCLUDE:
+						if (!isRecursive(primaryOption)) {
+							syntaxError = true;
+						} else {
+							currentOptionIsInclude = true;
+						}
+						break;
+					case EXCLUDE:
+						if (!isRecursive(primaryOption)) {
+							syntaxError = true;
+						} else {
+							currentOptionIsExclude = true;
+						}
+						break;
+					case GITIGNORE:
+						if (!isRecursive(primaryOption)) {
+							syntaxError = true;
+						} else {
+							ignoreFiles = true;
+						}
+						break;
 					case SUPPORTED_ENCODINGS:
 						if (primaryOption != null) {
 							syntaxError = true;
@@ -208,9 +340,47 @@ public class Enctool {
 					} else if (currentOptionIsPatternFilename) {
 						patternFilename = args[i];
 						currentOptionIsPatternFilename = false;
+					} else if (currentOptionIsThreads) {
+						try {
+							threads = Integer.parseInt(args[i]);
+						} catch (NumberFormatException e) {
+							syntaxError = true;
+						}
+						if (threads < 1) {
+							syntaxError = true;
+						}
+						currentOptionIsThreads = false;
+					} else if (currentOptionIsSampleSize) {
+						try {
+							sampleSize = Integer.parseInt(args[i]);
+						} catch (NumberFormatException e) {
+							syntaxError = true;
+						}
+						if (sampleSize < 1) {
+							syntaxError = true;
+						}
+						currentOptionIsSampleSize = false;
+					} else if (currentOptionIsCandidates) {
+						candidates = args[i].split(",");
+						currentOptionIsCandidates = false;
+					} else if (currentOptionIsRules) {
+						rulesFile = args[i];
+						currentOptionIsRules = false;
+					} else if (currentOptionIsInclude) {
+						includes.add(args[i]);
+						currentOptionIsInclude = false;
+					} else if (currentOptionIsExclude) {
+						excludes.add(args[i]);
+						currentOptionIsExclude = false;
+					} else if (currentOptionIsCache) {
+						cacheFile = args[i];
+						currentOptionIsCache = false;
 					} else if (currentOptionIsConvert) {
 						targetEncoding = args[i];
 						currentOptionIsConvert = false;
+					} else if (currentOptionIsValidate) {
+						validEncoding = args[i];
+						currentOptionIsValidate = false;
 					} else {
 
 						// <file> or <path>
@@ -244,7 +414,15 @@ public class Enctool {
 			// execute
 			execute(primaryOption, path, differentFrom, ouptputLocation,
 					patternFilename, allConfidences, targetEncoding,
-					inputEncoding, bom);
+					validEncoding, inputEncoding, bom, threads, cacheFile, xattr, sampleSize,
+					sampleWindows, sampleProgressive, candidates, rulesFile,
+					includes, excludes, ignoreFiles);
+			if (DEBUG) {
+				System.err.println("Recognizers run : "
+						+ CharsetDetector.getRecognizerRunCount()
+						+ ", skipped : "
+						+ CharsetDetector.getRecognizerSkipCount());
+			}
 		}
 	}
 
@@ -258,6 +436,8 @@ public class Enctool {
 		man.append('\n');
 		man.append("enctool [-r|-R|-cr] [options] <path>");
 		man.append('\n');
+		man.append("enctool -validate <encoding> [options] <file|path>");
+		man.append('\n');
 		man.append('\n');
 		man.append("This tool allows to detect and convert text files encoding.");
 		man.append('\n');
@@ -316,6 +496,38 @@ public class Enctool {
 		man.append("-a :             Display all confidences. Work only with -E or -R options.");
 		man.append('\n');
 		man.append('\n');
+		man.append("-j <threads> :   Number of threads used to detect or convert files.")
+				.append('\n');
+		man.append("                 Work only with -r, -R, -cr and -validate options.");
+		man.append('\n');
+		man.append('\n');
+		man.append(
+				"-include <glob> : Process only matching files (repeatable). A glob without")
+				.append('\n');
+		man.append(
+				"                 \"/\" is matched against names, otherwise against relative")
+				.append('\n');
+		man.append("                 paths. Work only with -r, -R, -cr and -validate options.");
+		man.append('\n');
+		man.append('\n');
+		man.append(
+				"-exclude <glob> : Skip matching files and directories (repeatable, example :")
+				.append('\n');
+		man.append(
+				"                 node_modules). Skipped directories are not read. Work only")
+				.append('\n');
+		man.append("                 with -r, -R, -cr and -validate options.");
+		man.append('\n');
+		man.append('\n');
+		man.append(
+				"-gitignore :     Skip files and directories listed in .gitignore and .ignore")
+				.append('\n');
+		man.append(
+				"                 files of the scanned tree, and .git directories. Work only")
+				.append('\n');
+		man.append("                 with -r, -R, -cr and -validate options.");
+		man.append('\n');
+		man.append('\n');
 		man.append("CONVERT MODS :");
 		man.append('\n');
 		man.append(
@@ -354,6 +566,16 @@ public class Enctool {
 				.append('\n');
 		man.append("                 Work only with -c and -cr options.");
 
+		man.append('\n');
+		man.append('\n');
+		man.append("VALIDATE MOD :");
+		man.append('\n');
+		man.append(
+				"-validate <encoding> : Check that whole files are valid <encoding>")
+				.append('\n');
+		man.append("                 (only UTF-8) and display offsets of invalid sequences.")
+				.append('\n');
+		man.append("                 Work on a file, or recursively in a directory.");
 		man.append('\n');
 		man.append('\n');
 		man.append("COMMONS OPTIONS :");
@@ -361,6 +583,67 @@ public class Enctool {
 		man.append("-p <regexp> :    Pattern to filter files names. Must be a regexp.");
 		man.append('\n');
 		man.append('\n');
+		man.append(
+				"-cache <file> :  Index of detected encodings, created if it does not exist.")
+				.append('\n');
+		man.append("                 Only files modified since the previous run are analysed.")
+				.append('\n');
+		man.append("                 Work only with -r, -R and -cr options.");
+		man.append('\n');
+		man.append('\n');
+		man.append(
+				"-xattr :         Keep detected encodings in an extended attribute of each file")
+				.append('\n');
+		man.append("                 (user.enctool.detection) instead of an index file.")
+				.append('\n');
+		man.append("                 Work only with -r, -R and -cr options.");
+		man.append('\n');
+		man.append('\n');
+		man.append("-s <bytes> :     Number of bytes analysed to detect encodings (default 8000).");
+		man.append('\n');
+		man.append('\n');
+		man.append(
+				"-sw :            Analyse the beginning, the middle and the end of files bigger")
+				.append('\n');
+		man.append("                 than the sample, instead of their first bytes only.");
+		man.append('\n');
+		man.append('\n');
+		man.append(
+				"-sp :            Analyse 512 bytes, then 8 times more at each step, until the")
+				.append('\n');
+		man.append(
+				"                 best encoding is clearly ahead of the others (progressive")
+				.append('\n');
+		man.append("                 sampling). Work only with -e, -E, -r and -R options.");
+		man.append('\n');
+		man.append('\n');
+		man.append(
+				"-candidates <encodings> : Detect only these encodings (comma separated,")
+				.append('\n');
+		man.append(
+				"                 example : UTF-8,windows-1252,Shift_JIS). Other encodings")
+				.append('\n');
+		man.append(
+				"                 are not analysed, which is faster. Declared encodings")
+				.append('\n');
+		man.append("                 (BOM, XML, HTML...) are still used. -cache and -xattr are ignored.");
+		man.append('\n');
+		man.append('\n');
+		man.append(
+				"-rules <file> :  Encodings assigned to files from their names, without detection.")
+				.append('\n');
+		man.append(
+				"                 One rule by line : <glob> <encoding> [check] or <glob> skip")
+				.append('\n');
+		man.append(
+				"                 (example : *.properties ISO-8859-1). With \"check\", the encoding")
+				.append('\n');
+		man.append(
+				"                 is assigned only if the file is valid, otherwise it is detected.")
+				.append('\n');
+		man.append("                 Work only with -r, -R and -cr options.");
+		man.append('\n');
+		man.append('\n');
 		man.append("OTHERS :");
 		man.append('\n');
 		man.append("-se :            Display names of all supported encodings.");
@@ -373,6 +656,16 @@ public class Enctool {
 		System.out.println(man.toString());
 	}
 
+	/**
+	 * @return True for the functions walking a directory tree.
+	 */
+	private static boolean isRecursive(CLOptions primaryOption) {
+		return primaryOption == CLOptions.DETECT_ENCODING_DIR
+				|| primaryOption == CLOptions.DETECT_ENCODING_DIR_ADVANCED
+				|| primaryOption == CLOptions.CONVERT_FILES_DIR
+				|| primaryOption == CLOptions.VALIDATE;
+	}
+
 	/**
 	 * Print version.
 	 */
@@ -458,18 +751,101 @@ public class Enctool {
 	 *            Display all confidences.
 	 * @param targetEncoding
 	 *            Target encoding (convert function).
+	 * @param validEncoding
+	 *            Expected encoding (validate function).
 	 * @param inputEncoding
 	 *            Forced input encoding.
 	 * @param bom
 	 *            Add BOM to UTF-8 file output.
+	 * @param threads
+	 *            Number of threads used by recursive functions.
+	 * @param cacheFile
+	 *            Index of detected encodings used by recursive functions
+	 *            (optional).
+	 * @param xattr
+	 *            Store detected encodings in extended attributes of files.
+	 * @param sampleSize
+	 *            Number of bytes analysed to detect encodings.
+	 * @param sampleWindows
+	 *            Analyse windows of big files instead of their first bytes.
+	 * @param sampleProgressive
+	 *            Stop reading the sample when the detection is conclusive.
+	 * @param candidates
+	 *            Encodings which can be detected (optional).
+	 * @param rulesFile
+	 *            Encodings assigned from file paths by recursive functions
+	 *            (optional).
+	 * @param includes
+	 *            Globs of the files processed by recursive functions.
+	 * @param excludes
+	 *            Globs of the files and directories skipped by recursive
+	 *            functions.
+	 * @param ignoreFiles
+	 *            Skip files listed in .gitignore and .ignore files.
 	 */
 	private static void execute(CLOptions mod, String path,
 			String differentFrom, String ouptputLocation,
 			String patternFilename, boolean allConfidences,
-			String targetEncoding, String inputEncoding, Boolean bom) {
+			String targetEncoding, String validEncoding,
+			String inputEncoding, Boolean bom,
+			int threads, String cacheFile, boolean xattr, int sampleSize,
+			boolean sampleWindows, boolean sampleProgressive,
+			String[] candidates, String rulesFile, List<String> includes,
+			List<String> excludes, boolean ignoreFiles) {
 
 		if (mod != null) {
 			Engine engine = new Engine();
+			engine.setSampling(sampleSize, sampleWindows, sampleProgressive);
+			if (candidates != null) {
+				try {
+					engine.setCandidates(candidates);
+				} catch (IllegalArgumentException e) {
+					System.out.println("ERROR => " + e.getMessage() + " (see -se)");
+					if (DEBUG) {
+						e.printStackTrace();
+					}
+					return;
+				}
+			}
+			if (rulesFile != null) {
+				try {
+					engine.setRules(new EncodingRules(rulesFile));
+				} catch (IOException e) {
+					System.out.println("ERROR => Can not read rules : "
+							+ e.getMessage());
+					if (DEBUG) {
+						e.printStackTrace();
+					}
+					return;
+				}
+			}
+			try {
+				engine.setPathFilter(includes, excludes, ignoreFiles);
+			} catch (IllegalArgumentException e) {
+				System.out.println("ERROR => Invalid glob : " + e.getMessage());
+				if (DEBUG) {
+					e.printStackTrace();
+				}
+				return;
+			}
+			DetectionCache cache = null;
+			if (cacheFile != null) {
+				try {
+					cache = new DetectionCache(cacheFile);
+				} catch (IOException e) {
+					System.out.println("ERROR => Can not open cache : "
+							+ cacheFile);
+					if (DEBUG) {
+						e.printStackTrace();
+					}
+					return;
+				}
+				engine.setCache(cache);
+			} else if (xattr) {
+				engine.setCache(new FileAttributeStore());
+			}
+			// reports of recursive functions
+			ReportSink sink = new WriterReportSink(System.out);
 			switch (mod) {
 			case DETECT_ENCODING_FILE:
 				try {
@@ -505,17 +881,17 @@ public class Enctool {
 				break;
 			case DETECT_ENCODING_DIR:
 				try {
-					System.out.println(engine.detectEncodingRecursive(path,
-							false, allConfidences, patternFilename,
-							differentFrom));
+					engine.detectEncodingRecursive(path, false,
+							allConfidences, patternFilename, differentFrom,
+							threads, sink);
+					sink.flush();
 				} catch (FileNotFoundException e) {
-					System.out
-							.println("ERROR => Directory not found : " + path);
+					printError(sink, "ERROR => Directory not found : " + path);
 					if (DEBUG) {
 						e.printStackTrace();
 					}
 				} catch (IOException e) {
-					System.out.println("ERROR => Error reading directory : "
+					printError(sink, "ERROR => Error reading directory : "
 							+ path);
 					if (DEBUG) {
 						e.printStackTrace();
@@ -525,17 +901,17 @@ public class Enctool {
 
 			case DETECT_ENCODING_DIR_ADVANCED:
 				try {
-					System.out.println(engine.detectEncodingRecursive(path,
-							true, allConfidences, patternFilename,
-							differentFrom));
+					engine.detectEncodingRecursive(path, true,
+							allConfidences, patternFilename, differentFrom,
+							threads, sink);
+					sink.flush();
 				} catch (FileNotFoundException e) {
-					System.out
-							.println("ERROR => Directory not found : " + path);
+					printError(sink, "ERROR => Directory not found : " + path);
 					if (DEBUG) {
 						e.printStackTrace();
 					}
 				} catch (IOException e) {
-					System.out.println("ERROR => Error reading directory : "
+					printError(sink, "ERROR => Error reading directory : "
 							+ path);
 					if (DEBUG) {
 						e.printStackTrace();
@@ -563,23 +939,55 @@ public class Enctool {
 
 			case CONVERT_FILES_DIR:
 				try {
-					System.out.println(engine.convertEncodingRecursive(path,
-							null, patternFilename, targetEncoding,
-							ouptputLocation, inputEncoding, bom));
+					engine.convertEncodingRecursive(path, null,
+							patternFilename, targetEncoding, ouptputLocation,
+							inputEncoding, bom, threads, sink);
+					sink.flush();
 				} catch (FileNotFoundException e) {
-					System.out
-							.println("ERROR => Directory not found : " + path);
+					printError(sink, "ERROR => Directory not found : " + path);
 					if (DEBUG) {
 						e.printStackTrace();
 					}
 				} catch (IOException e) {
-					System.out.println("ERROR => Error reading file : " + path);
+					printError(sink, "ERROR => Error reading file : " + path);
 					if (DEBUG) {
 						e.printStackTrace();
 					}
 				}
 				break;
 
+			case VALIDATE:
+				if (new File(path).isDirectory()) {
+					try {
+						engine.validateEncodingRecursive(path,
+								patternFilename, validEncoding, threads, sink);
+						sink.flush();
+					} catch (IOException e) {
+						printError(sink, "ERROR => Error reading directory : "
+								+ path);
+						if (DEBUG) {
+							e.printStackTrace();
+						}
+					}
+				} else {
+					try {
+						System.out.println(engine.validateEncoding(path,
+								validEncoding));
+					} catch (FileNotFoundException e) {
+						System.out.println("ERROR => File not found : " + path);
+						if (DEBUG) {
+							e.printStackTrace();
+						}
+					} catch (IOException e) {
+						System.out.println("ERROR => Error reading file : "
+								+ path);
+						if (DEBUG) {
+							e.printStackTrace();
+						}
+					}
+				}
+				break;
+
 			case SUPPORTED_ENCODINGS:
 				showSupportedEncodings();
 				break;
@@ -592,7 +1000,37 @@ public class Enctool {
 				break;
 			}
 
+			if (cache != null) {
+				try {
+					cache.close();
+				} catch (IOException e) {
+					System.out.println("ERROR => Can not write cache : "
+							+ cacheFile);
+					if (DEBUG) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Print an error message after the reports already written in the sink.
+	 * 
+	 * @param sink
+	 *            Sink to flush.
+	 * @param error
+	 *            Error message.
+	 */
+	private static void printError(ReportSink sink, String error) {
+		try {
+			sink.flush();
+		} catch (IOException e) {
+			if (DEBUG) {
+				e.printStackTrace();
+			}
 		}
+		System.out.println(error);
 	}
 
 }
@@ -20,25 +20,38 @@
 
 package fr.serres.enctool;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.util.regex.Matcher;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 import com.ibm.icu.text.CharsetDetector;
-import com.ibm.icu.text.CharsetMatch;
 
 /**
  * Implementation of all enctool functions.
@@ -54,12 +67,222 @@ public class Engine {
 	 */
 	private static final String UTF8_BOM = "\uFEFF";
 
+	/**
+	 * Default number of bytes analysed by the detector (as
+	 * CharsetDetector.setText(InputStream)).
+	 */
+	static final int SAMPLE_SIZE = 8000;
+
+	/**
+	 * First bytes read : binary files are recognized from them, and the first
+	 * step of progressive sampling analyses them. Each next step analyses
+	 * PROGRESSIVE_GROWTH times more.
+	 */
+	private static final int HEAD_SIZE = 512;
+	private static final int PROGRESSIVE_GROWTH = 8;
+
+	private static final byte[] UTF8_BOM_BYTES = { (byte) 0xEF, (byte) 0xBB,
+			(byte) 0xBF };
+
 	private static final int MAX_CONFIDENCES = 3;
 
 	/**
-	 * Firt temporary charactere.
+	 * Reports are flushed before a file bigger than this is processed by the
+	 * sequential walk, so that they are not held while it is read.
+	 */
+	private static final long FLUSH_FILE_SIZE = 1024 * 1024;
+
+	/**
+	 * Maximum number of matches of a detection.
+	 */
+	private static final int RECOGNIZERS = CharsetDetector
+			.getRecognizerCount();
+
+	/**
+	 * Tree walk follows symbolic links, as java.io.File does.
+	 */
+	private static final Set<FileVisitOption> FOLLOW_LINKS = EnumSet
+			.of(FileVisitOption.FOLLOW_LINKS);
+
+	/**
+	 * Previous detections (optional).
+	 */
+	private DetectionStore cache;
+
+	/**
+	 * Buffers and coders reused by conversions.
+	 */
+	private final Transcoder transcoder = new Transcoder();
+
+	/**
+	 * Buffer and DFA reused by UTF-8 validations.
+	 */
+	private final Utf8Validator validator = new Utf8Validator();
+
+	/**
+	 * Declared encodings are trusted (if the sample matches them) without
+	 * statistical detection.
+	 */
+	private final DeclarationSniffer sniffer = new DeclarationSniffer();
+
+	/**
+	 * Detector, matches array and sample buffer reused by detections : no
+	 * buffer is allocated for each file.
+	 */
+	private final CharsetDetector detector = new CharsetDetector();
+	private final int[] charsetIds = new int[RECOGNIZERS];
+	private final int[] languageIds = new int[RECOGNIZERS];
+	private final int[] confidences = new int[RECOGNIZERS];
+	private byte[] sample = new byte[SAMPLE_SIZE];
+
+	/**
+	 * Detector input made of windows of big files (null if only the first
+	 * bytes are analysed).
+	 */
+	private byte[] windows;
+
+	/**
+	 * Stop reading the sample as soon as the detection is conclusive.
+	 */
+	private boolean progressive;
+
+	/**
+	 * Encodings which can be detected (null for all of them).
+	 */
+	private String[] candidates;
+
+	/**
+	 * Encodings assigned from file paths by recursive functions (optional).
 	 */
-	private String firstCharTmp;
+	private EncodingRules rules;
+
+	/**
+	 * Files and directories walked by recursive functions (optional).
+	 */
+	private PathFilter filter;
+
+	/**
+	 * Use previous detections : recursive detections and conversions detect
+	 * only files modified since they were stored.
+	 * 
+	 * @param cache
+	 *            Index or file attributes store, or null to detect all files.
+	 */
+	public void setCache(DetectionStore cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Set the bytes analysed to detect encodings. By default, the first 8000
+	 * bytes of files are analysed.
+	 * 
+	 * @param sampleSize
+	 *            Number of bytes analysed.
+	 * @param windows
+	 *            For files bigger than sampleSize, analyse 3 windows (at the
+	 *            beginning, in the middle and at the end of the file) instead
+	 *            of the first bytes only.
+	 * @param progressive
+	 *            Detect encodings from the first 512 bytes, then 8 times more
+	 *            at each step, until the best match is conclusive or the
+	 *            sample is full (detection functions only : conversions read
+	 *            the whole file anyway).
+	 */
+	public void setSampling(int sampleSize, boolean windows,
+			boolean progressive) {
+		this.sample = new byte[sampleSize];
+		this.windows = windows ? new byte[sampleSize] : null;
+		this.progressive = progressive;
+		this.detector.setMaxInputLength(sampleSize);
+	}
+
+	/**
+	 * Restrict the detection to some encodings : recognizers of the other
+	 * encodings are not run. Previous detections are not used (they may have
+	 * been done with other candidates).
+	 * 
+	 * @param candidates
+	 *            Names or aliases of the encodings, or null to detect all
+	 *            encodings.
+	 * @throws IllegalArgumentException
+	 *             If an encoding can not be detected.
+	 */
+	public void setCandidates(String[] candidates) {
+		String[] names = null;
+		if (candidates != null) {
+			names = new String[candidates.length];
+			for (int i = 0; i < candidates.length; i++) {
+				names[i] = canonicalName(candidates[i]);
+			}
+		}
+		this.detector.setDetectableCharsets(names);
+		this.candidates = names;
+	}
+
+	/**
+	 * @return Java name of an encoding (windows-1252 for cp1252), or the name
+	 *         itself if Java does not know it.
+	 */
+	private static String canonicalName(String encoding) {
+		try {
+			if (Charset.isSupported(encoding)) {
+				return Charset.forName(encoding).name();
+			}
+		} catch (IllegalArgumentException e) {
+			// illegal name : the detector rejects it
+		}
+		return encoding;
+	}
+
+	/**
+	 * Assign encodings from file paths, before reading files : recursive
+	 * detections and conversions use the first matching rule instead of
+	 * detecting encodings, or skip files.
+	 * 
+	 * @param rules
+	 *            Rules, or null to detect all files.
+	 */
+	public void setRules(EncodingRules rules) {
+		this.rules = rules;
+	}
+
+	/**
+	 * Select the files and directories walked by recursive functions.
+	 * Excluded directories are skipped before they are listed.
+	 * 
+	 * @param includes
+	 *            Globs of the files processed (all files if empty).
+	 * @param excludes
+	 *            Globs of the files and directories skipped.
+	 * @param ignoreFiles
+	 *            Also skip files and directories listed in .gitignore and
+	 *            .ignore files of the walked directories, and .git
+	 *            directories.
+	 * @throws IllegalArgumentException
+	 *             If a glob is invalid.
+	 */
+	public void setPathFilter(List<String> includes, List<String> excludes,
+			boolean ignoreFiles) {
+		if (includes.isEmpty() && excludes.isEmpty() && !ignoreFiles) {
+			this.filter = null;
+		} else {
+			this.filter = new PathFilter(includes, excludes, ignoreFiles);
+		}
+	}
+
+	/**
+	 * @return New engine with the same settings (cache, sampling, candidates
+	 *         and rules), for another thread.
+	 */
+	Engine copy() {
+		Engine engine = new Engine();
+		engine.setCache(this.cache);
+		engine.setSampling(this.sample.length, this.windows != null,
+				this.progressive);
+		engine.setCandidates(this.candidates);
+		engine.setRules(this.rules);
+		return engine;
+	}
 
 	/**
 	 * Detect a file encoding.
@@ -84,93 +307,610 @@ public class Engine {
 			File testFile = new File(file);
 			if (testFile != null && testFile.isFile() && testFile.canRead()) {
 
-				// read file
-				BufferedInputStream streamData = this.inputStreamFromPath(file);
+				result.append(this.detectEncodingOfFile(file, null, null,
+						advanced, allConfidences, differentFrom));
+			} else {
+				// error reading
+				if (!testFile.isFile()) {
+					result.append("ERROR => It's not a file. ");
+				} else if (!testFile.canRead()) {
+					result.append("ERROR => Can not read file. No permission for current user ?");
+				}
+			}
+		}
+		return result.toString();
+	}
 
-				// analyse
-				CharsetDetector detector;
-				detector = new CharsetDetector();
-				detector.setText(streamData);
+	/**
+	 * Detect encoding of a file known to be a readable regular file.
+	 * 
+	 * @param file
+	 *            File.
+	 * @param attrs
+	 *            Attributes of the file, used to look up the cache (optional).
+	 * @param rule
+	 *            Rule of the file (optional).
+	 * @param advanced
+	 *            Display more informations (3 firsts confidences).
+	 * @param allConfidences
+	 *            Display all confidences.
+	 * @param differentFrom
+	 *            Display only file with different encoding that differentFrom.
+	 * @return Report.
+	 * @throws IOException
+	 *             If reading file error.
+	 */
+	String detectEncodingOfFile(String file, BasicFileAttributes attrs,
+			EncodingRules.Rule rule, boolean advanced, boolean allConfidences,
+			String differentFrom) throws IOException {
+		if (rule != null) {
+			String encoding = this.ruleEncoding(rule, file);
+			if (encoding != null) {
+				boolean bom = "UTF-8".equals(encoding)
+						&& startsWithUTF8BOM(file);
+				return this.generateReport(certain(encoding, bom), advanced,
+						allConfidences, differentFrom);
+			}
+		}
+		// the cache keeps only the firsts confidences
+		boolean useCache = this.cache != null && attrs != null
+				&& !allConfidences && this.candidates == null;
+		Detection detection = null;
+		if (useCache) {
+			detection = this.cache.get(file, attrs);
+		}
+		if (detection == null) {
+			try {
+				detection = this.detect(file, allConfidences ? RECOGNIZERS
+						: MAX_CONFIDENCES);
+			} catch (ArrayIndexOutOfBoundsException e) {
+				if (Enctool.DEBUG) {
+					e.printStackTrace();
+				}
+				return "ERROR => Binary file ? ";
+			}
+			if (useCache && detection.binary == null) {
+				this.cache.put(file, attrs, detection);
+			}
+		}
+		return this.generateReport(detection, advanced, allConfidences,
+				differentFrom);
+	}
 
-				if (!advanced) {
-					// character set matches input data with the highest
-					// confidence
-					try {
-						CharsetMatch match = detector.detect();
-						result.append(this.generateReport(match, advanced,
-								differentFrom));
-
-						// TODO begin add BOM detecting fo UTF-8 files ?
-						if ("UTF-8".equals(match.getName())) {
-							InputStreamReader reader = new InputStreamReader(
-									streamData, match.getName());
-							BufferedReader breader = new BufferedReader(reader);
-							if (this.isBOMUTF8Present(breader)) {
-								// BOM is present
-								result.append(" (");
-								result.append("with BOM");
-								result.append(")");
-							} else {
-								// BOM is not present
-								result.append(" (");
-								result.append("without BOM");
-								result.append(")");
-							}
-						}
-						// TODO end
+	/**
+	 * Analyse a file.
+	 * 
+	 * @param file
+	 *            File.
+	 * @param maxMatches
+	 *            Maximum number of matches kept.
+	 * @return The character sets that could match the file with a non-zero
+	 *         confidence, and UTF-8 BOM presence if the best match is UTF-8,
+	 *         or the format of a binary file.
+	 * @throws IOException
+	 *             If reading file error.
+	 */
+	private Detection detect(String file, int maxMatches) throws IOException {
+		byte[] sample = this.sample;
+		FileInputStream streamData = new FileInputStream(file);
+		try {
+			// binary files are rejected from their first bytes
+			int headLength = readSample(streamData, sample, 0,
+					Math.min(HEAD_SIZE, sample.length));
+			String binary = BinaryClassifier.classify(sample, headLength);
+			if (binary != null) {
+				return new Detection(binary);
+			}
+			if (this.progressive) {
+				return this.detectProgressively(streamData, headLength,
+						maxMatches);
+			}
+			int sampleLength = readSample(streamData, sample, headLength,
+					sample.length);
+			return this.detect(sample, sampleLength, streamData.getChannel(),
+					maxMatches);
+		} finally {
+			streamData.close();
+		}
+	}
 
-					} catch (ArrayIndexOutOfBoundsException e) {
-						result.append("ERROR => Binary file ? ");
-						if (Enctool.DEBUG) {
-							e.printStackTrace();
-						}
-					} finally {
-						// close
-						if (streamData != null) {
-							streamData.close();
-						}
-					}
+	/**
+	 * Analyse the first bytes of a file step by step, until the best match is
+	 * conclusive. The detector keeps the bytes of previous steps : each step
+	 * reads only the new bytes.
+	 * 
+	 * @param in
+	 *            File, whose head is already read in the sample.
+	 * @param length
+	 *            Number of bytes of the head.
+	 * @param maxMatches
+	 *            Maximum number of matches kept.
+	 * @return Detection.
+	 * @throws IOException
+	 *             If reading file error.
+	 */
+	private Detection detectProgressively(FileInputStream in, int length,
+			int maxMatches) throws IOException {
+		byte[] sample = this.sample;
+		Detection declared = this.detectDeclared(sample, length);
+		if (declared != null) {
+			return declared;
+		}
+		this.detector.reset().update(sample, 0, length);
+		int end = Math.min(HEAD_SIZE, sample.length);
+		while (length == end && length < sample.length
+				&& !this.detector.isConclusive()) {
+			end = (int) Math.min((long) end * PROGRESSIVE_GROWTH,
+					sample.length);
+			int previous = length;
+			length = readSample(in, sample, length, end);
+			this.detector.update(sample, previous, length - previous);
+		}
+		if (length == sample.length) {
+			// full sample : same analysis as without progressive sampling
+			return this.detect(sample, length, in.getChannel(), maxMatches);
+		}
+		return this.collectMatches(sample, length, maxMatches);
+	}
+
+	/**
+	 * Analyse the sample of a file, or its windows if the file is bigger than
+	 * the sample and windows are enabled.
+	 * 
+	 * @param sample
+	 *            First bytes of the file.
+	 * @param length
+	 *            Number of bytes in sample.
+	 * @param channel
+	 *            File, read to get windows.
+	 * @param maxMatches
+	 *            Maximum number of matches kept.
+	 * @return Detection.
+	 * @throws IOException
+	 *             If reading file error.
+	 */
+	private Detection detect(byte[] sample, int length, FileChannel channel,
+			int maxMatches) throws IOException {
+		Detection declared = this.detectDeclared(sample, length);
+		if (declared != null) {
+			return declared;
+		}
+		if (this.windows != null && length == sample.length) {
+			long size = channel.size();
+			if (size > length) {
+				return this.detect(this.windows,
+						this.readWindows(channel, size), maxMatches);
+			}
+		}
+		return this.detect(sample, length, maxMatches);
+	}
+
+	/**
+	 * Get the encoding declared by the first bytes of a file (BOM, XML
+	 * declaration, HTML meta tag, coding cookie...), if the sample matches it.
+	 * 
+	 * @param sample
+	 *            First bytes of the file.
+	 * @param length
+	 *            Number of bytes in sample.
+	 * @return The declared encoding with a confidence of 100, or null if the
+	 *         encoding must be detected.
+	 */
+	private Detection detectDeclared(byte[] sample, int length) {
+		String name = this.sniffer.sniff(sample, length);
+		if (name == null) {
+			return null;
+		}
+		boolean bom = "UTF-8".equals(name) && hasUTF8BOM(sample, length);
+		return certain(name, bom);
+	}
+
+	/**
+	 * @param name
+	 *            Encoding known without statistical detection.
+	 * @param bom
+	 *            True if the file starts with an UTF-8 BOM.
+	 * @return Detection of this encoding only, with a confidence of 100.
+	 */
+	private static Detection certain(String name, boolean bom) {
+		return new Detection(new String[] { name }, new int[] { 100 },
+				new String[] { null }, bom);
+	}
+
+	/**
+	 * Find the rule of a file.
+	 * 
+	 * @param root
+	 *            Scanned directory (absolute).
+	 * @param file
+	 *            File in this directory (absolute).
+	 * @return First matching rule, or null if there is no rules or no
+	 *         matching rule.
+	 */
+	EncodingRules.Rule findRule(Path root, Path file) {
+		if (this.rules == null) {
+			return null;
+		}
+		return this.rules.find(root.relativize(file));
+	}
+
+	/**
+	 * Encoding assigned to a readable file by a rule. Rules which check files
+	 * read them entirely, with the UTF-8 validator or a decoder.
+	 * 
+	 * @param rule
+	 *            Rule of the file, which does not skip it.
+	 * @param file
+	 *            File.
+	 * @return Encoding of the rule, or null if the file must be detected (it
+	 *         is not valid in the encoding of a checking rule).
+	 * @throws IOException
+	 *             If reading file error.
+	 */
+	private String ruleEncoding(EncodingRules.Rule rule, String file)
+			throws IOException {
+		if (rule.check) {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				boolean valid;
+				if (isValidable(rule.encoding)) {
+					valid = this.validator.validate(in.getChannel());
 				} else {
-					// all of the character sets that could match your input
-					// data
-					// with a non-zero confidence
-					try {
-						CharsetMatch[] matches = detector.detectAll();
-						int confidencesDisplayed = matches.length;
-						if (!allConfidences) {
-							if (MAX_CONFIDENCES < confidencesDisplayed) {
-								confidencesDisplayed = MAX_CONFIDENCES;
+					valid = this.transcoder.validate(in,
+							Charset.forName(rule.encoding));
+				}
+				if (!valid) {
+					return null;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return rule.encoding;
+	}
+
+	/**
+	 * Fill the windows buffer : a third of it with the beginning of the
+	 * sample, a third with the middle of the file and the rest with the end
+	 * of the file. Windows are cut at line ends, so that consecutive windows
+	 * do not split a multi-byte character.
+	 * 
+	 * @param channel
+	 *            File, bigger than the sample (read with positional reads).
+	 * @param size
+	 *            File size.
+	 * @return Number of bytes in windows buffer.
+	 * @throws IOException
+	 *             If reading file error.
+	 */
+	private int readWindows(FileChannel channel, long size) throws IOException {
+		byte[] input = this.windows;
+		int windowSize = input.length / 3;
+		int length = lastLineEnd(this.sample, 0, windowSize);
+		System.arraycopy(this.sample, 0, input, 0, length);
+		length = this.readWindow(channel, size / 2 - windowSize / 2,
+				windowSize, length, true);
+		int tailSize = input.length - length;
+		return this.readWindow(channel, size - tailSize, tailSize, length,
+				false);
+	}
+
+	/**
+	 * Read a window of a file in the windows buffer. The first line, which
+	 * may be incomplete, is skipped.
+	 * 
+	 * @param channel
+	 *            File.
+	 * @param position
+	 *            Position of the window in the file.
+	 * @param windowSize
+	 *            Window size.
+	 * @param offset
+	 *            Position of the window in the windows buffer.
+	 * @param cutEnd
+	 *            Skip the last line, which may be incomplete.
+	 * @return End of the window in the windows buffer.
+	 * @throws IOException
+	 *             If reading file error.
+	 */
+	private int readWindow(FileChannel channel, long position, int windowSize,
+			int offset, boolean cutEnd) throws IOException {
+		byte[] input = this.windows;
+		ByteBuffer buffer = ByteBuffer.wrap(input, offset, windowSize);
+		int read = 0;
+		while (buffer.hasRemaining() && read != -1) {
+			// positional read : the stream position is not changed
+			read = channel.read(buffer, position + buffer.position() - offset);
+		}
+		int end = buffer.position();
+		int start = offset;
+		for (int i = offset; i < end; i++) {
+			if (input[i] == '\n') {
+				start = i + 1;
+				break;
+			}
+		}
+		if (cutEnd) {
+			end = start + lastLineEnd(input, start, end - start);
+		}
+		System.arraycopy(input, start, input, offset, end - start);
+		return offset + end - start;
+	}
+
+	/**
+	 * Length of the complete lines of a buffer.
+	 * 
+	 * @param bytes
+	 *            Buffer.
+	 * @param offset
+	 *            First byte.
+	 * @param length
+	 *            Number of bytes.
+	 * @return Number of bytes up to the last line feed (included), or length
+	 *         if there is no line feed.
+	 */
+	private static int lastLineEnd(byte[] bytes, int offset, int length) {
+		for (int i = offset + length - 1; i >= offset; i--) {
+			if (bytes[i] == '\n') {
+				return i + 1 - offset;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Analyse the first bytes of a file.
+	 * 
+	 * @param sample
+	 *            First bytes of the file.
+	 * @param length
+	 *            Number of bytes in sample.
+	 * @param maxMatches
+	 *            Maximum number of matches kept.
+	 * @return The character sets that could match the file with a non-zero
+	 *         confidence, and UTF-8 BOM presence if the best match is UTF-8.
+	 */
+	private Detection detect(byte[] sample, int length, int maxMatches) {
+		this.detector.reset().setText(sample, length);
+		return this.collectMatches(sample, length, maxMatches);
+	}
+
+	/**
+	 * Get the best matches of the detector input. Results are read as IDs in
+	 * reused arrays : nothing refers to the sample buffer.
+	 * 
+	 * @param sample
+	 *            Bytes given to the detector.
+	 * @param length
+	 *            Number of bytes in sample.
+	 * @param maxMatches
+	 *            Maximum number of matches kept.
+	 * @return The character sets that could match the file with a non-zero
+	 *         confidence, and UTF-8 BOM presence if the best match is UTF-8.
+	 */
+	private Detection collectMatches(byte[] sample, int length, int maxMatches) {
+		int count = this.detector.detectTop(maxMatches, this.charsetIds,
+				this.languageIds, this.confidences);
+
+		String[] names = new String[count];
+		String[] languages = new String[count];
+		for (int i = 0; i < count; i++) {
+			names[i] = CharsetDetector.getCharsetName(this.charsetIds[i]);
+			languages[i] = CharsetDetector
+					.getLanguageCode(this.languageIds[i]);
+		}
+		int[] confidences = Arrays.copyOf(this.confidences, count);
+		boolean bom = count > 0 && "UTF-8".equals(names[0])
+				&& hasUTF8BOM(sample, length);
+		return new Detection(names, confidences, languages, bom);
+	}
+
+	/**
+	 * Detect files encoding recursively in a directory.
+	 * 
+	 * @param dir
+	 *            Directory.
+	 * @param advanced
+	 *            Display more informations (3 firsts confidences).
+	 * @param allConfidences
+	 *            Display all confidences.
+	 * @param pattern
+	 *            Filename pattern.
+	 * @param differentFrom
+	 *            Display only file with different encoding that differentFrom.
+	 * @return Report.
+	 * @throws IOException
+	 *             If reading file error.
+	 */
+	public String detectEncodingRecursive(String dir, boolean advanced,
+			boolean allConfidences, String pattern, String differentFrom)
+			throws IOException {
+		StringWriter result = new StringWriter();
+		ReportSink sink = new WriterReportSink(result);
+		this.detectEncodingRecursive(dir, advanced, allConfidences, pattern,
+				differentFrom, 1, sink);
+		sink.flush();
+		return result.toString();
+	}
+
+	/**
+	 * Detect files encoding recursively in a directory. Report of each file is
+	 * written in the sink as soon as it is known, in the same order whatever
+	 * the number of threads.
+	 * 
+	 * @param dir
+	 *            Directory.
+	 * @param advanced
+	 *            Display more informations (3 firsts confidences).
+	 * @param allConfidences
+	 *            Display all confidences.
+	 * @param pattern
+	 *            Filename pattern.
+	 * @param differentFrom
+	 *            Display only file with different encoding that differentFrom.
+	 * @param threads
+	 *            Number of threads.
+	 * @param sink
+	 *            Report destination.
+	 * @throws IOException
+	 *             If reading file error.
+	 */
+	public void detectEncodingRecursive(String dir, final boolean advanced,
+			final boolean allConfidences, String pattern,
+			final String differentFrom, int threads, ReportSink sink)
+			throws IOException {
+		if (dir != null) {
+			// init pattern
+			Pattern p = null;
+			if (pattern != null) {
+				p = Pattern.compile(pattern);
+			}
+
+			final Path absoluteRoot = Paths.get(dir).toAbsolutePath();
+			ParallelScanner.FileJob job = new ParallelScanner.FileJob() {
+				@Override
+				public String process(Engine engine, Path file,
+						BasicFileAttributes attrs) throws IOException {
+					EncodingRules.Rule rule = engine.findRule(absoluteRoot,
+							file);
+					if (rule != null && rule.isSkip()) {
+						return "";
+					}
+					if (Files.isReadable(file)) {
+						return engine.detectEncodingOfFile(file.toString(),
+								attrs, rule, advanced, allConfidences,
+								differentFrom);
+					}
+					return "ERROR => Can not read file. No permission for current user ?";
+				}
+			};
+			this.walk(dir, p, job, threads, sink);
+		}
+	}
+
+	/**
+	 * Process files of a directory tree, with one thread or with a
+	 * ParallelScanner.
+	 */
+	private void walk(String dir, Pattern p, ParallelScanner.FileJob job,
+			int threads, ReportSink sink) throws IOException {
+		if (threads > 1) {
+			new ParallelScanner(threads, this).scan(dir, p, this.filter, job,
+					sink);
+		} else {
+			this.walk(Paths.get(dir), p, job, sink);
+		}
+	}
+
+	/**
+	 * Process files of a directory tree (one thread). The tree is walked
+	 * iteratively and the attributes read while listing a directory are used
+	 * to select regular files. Directories rejected by the filter are skipped
+	 * before they are listed.
+	 */
+	private void walk(Path root, final Pattern p,
+			final ParallelScanner.FileJob job, final ReportSink sink)
+			throws IOException {
+		if (Files.isDirectory(root)) {
+			final Path absoluteRoot = root.toAbsolutePath();
+			final PathFilter filter = this.filter;
+			Files.walkFileTree(absoluteRoot, FOLLOW_LINKS,
+					Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+
+						/**
+						 * Scopes of the directories being visited (a scope
+						 * may be null).
+						 */
+						private final List<PathFilter.Scope> scopes = new ArrayList<PathFilter.Scope>();
+
+						@Override
+						public FileVisitResult preVisitDirectory(Path dir,
+								BasicFileAttributes attrs) throws IOException {
+							if (filter != null) {
+								PathFilter.Scope scope = this.scope();
+								if (!dir.equals(absoluteRoot)
+										&& !filter.accepts(scope, absoluteRoot,
+												dir, true)) {
+									return FileVisitResult.SKIP_SUBTREE;
+								}
+								this.scopes.add(filter.enter(scope, dir));
 							}
+							return FileVisitResult.CONTINUE;
 						}
 
-						for (int i = 0; i < confidencesDisplayed; i++) {
-							result.append(this.generateReport(matches[i],
-									advanced, null));
-							if (i + 1 < confidencesDisplayed) {
-								result.append(" / ");
+						@Override
+						public FileVisitResult postVisitDirectory(Path dir,
+								IOException exc) throws IOException {
+							if (filter != null) {
+								this.scopes.remove(this.scopes.size() - 1);
 							}
+							return super.postVisitDirectory(dir, exc);
 						}
-					} catch (ArrayIndexOutOfBoundsException e) {
-						result.append("ERROR => Binary file ? ");
-						if (Enctool.DEBUG) {
-							e.printStackTrace();
+
+						private PathFilter.Scope scope() {
+							return this.scopes.isEmpty() ? null : this.scopes
+									.get(this.scopes.size() - 1);
 						}
-					} finally {
-						// close
-						if (streamData != null) {
-							streamData.close();
+
+						@Override
+						public FileVisitResult visitFile(Path file,
+								BasicFileAttributes attrs) throws IOException {
+							if (attrs.isRegularFile()
+									&& matches(p, file)
+									&& (filter == null || filter.accepts(
+											this.scope(), absoluteRoot, file,
+											false))) {
+								if (attrs.size() > FLUSH_FILE_SIZE) {
+									sink.flush();
+								}
+								String reportTmp = job.process(Engine.this,
+										file, attrs);
+								if (!"".equals(reportTmp)) {
+									// if different from encoding parameter
+									sink.report(file.toString(), reportTmp);
+								}
+							}
+							return FileVisitResult.CONTINUE;
 						}
-					}
-				}
-				// close
-				if (streamData != null) {
-					streamData.close();
-				}
+
+						@Override
+						public FileVisitResult visitFileFailed(Path file,
+								IOException exc) throws IOException {
+							sink.report(file.toString(), walkError(exc));
+							return FileVisitResult.CONTINUE;
+						}
+					});
+		} else {
+			sink.report(root.toString(), "ERROR => It's not a directory.");
+		}
+	}
+
+	/**
+	 * Check that a whole file is valid in an encoding. Only UTF-8 can be
+	 * validated.
+	 * 
+	 * @param file
+	 *            File.
+	 * @param encoding
+	 *            Expected encoding.
+	 * @return Report.
+	 * @throws IOException
+	 *             If reading file error.
+	 */
+	public String validateEncoding(String file, String encoding)
+			throws IOException {
+		StringBuilder result = new StringBuilder();
+		if (file != null) {
+			if (!isValidable(encoding)) {
+				result.append(validationNotSupported(encoding));
 			} else {
-				// error reading
-				if (!testFile.isFile()) {
+				// read test
+				File testFile = new File(file);
+				if (testFile.isFile() && testFile.canRead()) {
+					result.append(this.validateFile(file));
+				} else if (!testFile.isFile()) {
 					result.append("ERROR => It's not a file. ");
-				} else if (!testFile.canRead()) {
+				} else {
 					result.append("ERROR => Can not read file. No permission for current user ?");
 				}
 			}
@@ -179,74 +919,99 @@ public class Engine {
 	}
 
 	/**
-	 * Detect files encoding recursively in a directory.
+	 * Check that whole files are valid in an encoding, recursively in a
+	 * directory. Report of each file is written in the sink as soon as it is
+	 * known, in the same order whatever the number of threads.
 	 * 
 	 * @param dir
 	 *            Directory.
-	 * @param advanced
-	 *            Display more informations (3 firsts confidences).
-	 * @param allConfidences
-	 *            Display all confidences.
 	 * @param pattern
 	 *            Filename pattern.
-	 * @param differentFrom
-	 *            Display only file with different encoding that differentFrom.
-	 * @return Report.
+	 * @param encoding
+	 *            Expected encoding.
+	 * @param threads
+	 *            Number of threads.
+	 * @param sink
+	 *            Report destination.
 	 * @throws IOException
 	 *             If reading file error.
 	 */
-	public String detectEncodingRecursive(String dir, boolean advanced,
-			boolean allConfidences, String pattern, String differentFrom)
-			throws IOException {
-		StringBuilder result = new StringBuilder();
+	public void validateEncodingRecursive(String dir, String pattern,
+			String encoding, int threads, ReportSink sink) throws IOException {
 		if (dir != null) {
+			if (!isValidable(encoding)) {
+				sink.message(validationNotSupported(encoding));
+				return;
+			}
 			// init pattern
 			Pattern p = null;
 			if (pattern != null) {
 				p = Pattern.compile(pattern);
 			}
 
-			File file = new File(dir);
-			if (file != null && file.isDirectory()) {
-				File[] currentFiles = file.listFiles();
-				for (File fileTmp : currentFiles) {
-					if (fileTmp.isFile()) {
-						boolean fileTmpMatch = true;
-						if (p != null) {
-							// filename match pattern ?
-							Matcher matcher = p.matcher(fileTmp.getName());
-							if (!matcher.matches()) {
-								fileTmpMatch = false;
-							}
-						}
-
-						if (fileTmpMatch) {
-							String reportTmp = this.detectEncoding(
-									fileTmp.getAbsolutePath(), advanced,
-									allConfidences, differentFrom);
-							if (!"".equals(reportTmp)) {
-								// if different from encoding parameter
-								result.append(fileTmp.getAbsolutePath());
-								result.append(" : ");
-								result.append(reportTmp);
-								result.append('\n');
-							}
-						}
-					} else {
-						// directory
-						result.append(this.detectEncodingRecursive(
-								fileTmp.getAbsolutePath(), advanced,
-								allConfidences, pattern, differentFrom));
+			ParallelScanner.FileJob job = new ParallelScanner.FileJob() {
+				@Override
+				public String process(Engine engine, Path file,
+						BasicFileAttributes attrs) throws IOException {
+					if (Files.isReadable(file)) {
+						return engine.validateFile(file.toString());
 					}
+					return "ERROR => Can not read file. No permission for current user ?";
 				}
-			} else {
-				result.append(dir + " : ERROR => It's not a directory.");
-				result.append('\n');
+			};
+			this.walk(dir, p, job, threads, sink);
+		}
+	}
+
+	/**
+	 * Check that a readable regular file is valid UTF-8.
+	 * 
+	 * @param file
+	 *            File.
+	 * @return Report, with offsets of the first invalid sequences.
+	 * @throws IOException
+	 *             If reading file error.
+	 */
+	private String validateFile(String file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			if (this.validator.validate(in.getChannel())) {
+				return "Valid UTF-8";
 			}
+		} finally {
+			in.close();
+		}
+		StringBuilder result = new StringBuilder("INVALID UTF-8 : ");
+		result.append(this.validator.getInvalid());
+		result.append(" invalid sequence(s) at byte(s) ");
+		long[] offsets = this.validator.getOffsets();
+		for (int i = 0; i < offsets.length; i++) {
+			if (i > 0) {
+				result.append(", ");
+			}
+			result.append(offsets[i]);
+		}
+		if (this.validator.getInvalid() > offsets.length) {
+			result.append(", ...");
 		}
 		return result.toString();
 	}
 
+	/**
+	 * @param encoding
+	 *            Encoding name.
+	 * @return True if whole files can be validated in this encoding.
+	 */
+	private static boolean isValidable(String encoding) {
+		return encoding != null && Charset.isSupported(encoding)
+				&& "UTF-8".equals(Charset.forName(encoding).name());
+	}
+
+	private static String validationNotSupported(String encoding) {
+		return "ERROR : validation of encoding \"" + encoding
+				+ "\" is not supported (only UTF-8). ";
+	}
+
 	/**
 	 * Convert a text file to other encoding.
 	 * 
@@ -265,6 +1030,17 @@ public class Engine {
 	public String convertEncoding(String file, String toEncoding,
 			String ouptputLocation, String inputEncoding, Boolean utf8BOM)
 			throws IOException {
+		return this.convertEncoding(file, null, toEncoding, ouptputLocation,
+				inputEncoding, utf8BOM);
+	}
+
+	/**
+	 * Convert a text file to other encoding, with its attributes to look up
+	 * the cache (optional).
+	 */
+	private String convertEncoding(String file, BasicFileAttributes attrs,
+			String toEncoding, String ouptputLocation, String inputEncoding,
+			Boolean utf8BOM) throws IOException {
 		StringBuilder result = new StringBuilder();
 		File inputFile = null;
 		if (file != null) {
@@ -314,116 +1090,194 @@ public class Engine {
 					// CONVERT :
 
 					// init
-					BufferedInputStream inputStreamData = null;
-					Writer out = null;
-					Reader in = null;
-					BufferedReader breader = null;
+					InputStream inputStreamData = null;
+					OutputStream out = null;
 					File outFile = null;
 					try {
 
 						if (canReadWriteFile && canReadWriteParentDir
 								&& canReadWriteOutputLocationDir) {
 
+							// the file is opened once : the sample read for
+							// detection is put back in front of the stream
+							FileInputStream fileData = new FileInputStream(file);
+							inputStreamData = fileData;
+							byte[] sample = this.sample;
+							int sampleLength = readSample(inputStreamData,
+									sample);
 							String encoding = inputEncoding;
 							if (encoding == null) {
+								// a forced encoding is trusted : binary files
+								// are only recognized before detection
+								String binary = BinaryClassifier.classify(
+										sample,
+										Math.min(HEAD_SIZE, sampleLength));
+								if (binary != null) {
+									result.append("ERROR : this file can not be converted (binary file : "
+											+ binary + ").");
+									return result.toString();
+								}
 								// detect encoding
-								inputStreamData = this
-										.inputStreamFromPath(file);
-								encoding = this
-										.simpleDetectEncoding(inputStreamData);
-								if (inputStreamData != null) {
-									// close
+								encoding = this.simpleDetectEncoding(file, attrs,
+										sample, sampleLength, fileData.getChannel());
+							}
+
+							int skip = 0;
+							boolean addBOM = false;
+							// BOM written before the converted text
+							boolean writeBOM = false;
+							if ("UTF-8".equals(encoding) && utf8BOM != null) {
+								// detect utf8 BOM
+								if (hasUTF8BOM(sample, sampleLength)) {
+									if (!utf8BOM) {
+										// no writting BOM
+										skip = UTF8_BOM_BYTES.length;
+									}
+								} else {
+									addBOM = utf8BOM;
+								}
+							} else if (utf8BOM != null && utf8BOM
+									&& encoding != null
+									&& !encoding.startsWith("UTF-")
+									&& Charset.isSupported(encoding)
+									&& "UTF-8".equals(Charset.forName(toEncoding)
+											.name())) {
+								// legacy encoding to UTF-8 (UTF-16 and UTF-32
+								// keep their own BOM)
+								writeBOM = true;
+							}
+
+							boolean alreadyInTarget = false;
+							if (ouptputLocation == null && skip == 0 && !addBOM
+									&& encoding != null && Charset.isSupported(encoding)
+									&& Charset.forName(encoding).equals(
+											Charset.forName(toEncoding))) {
+								// same encoding and BOM : file is left untouched if it
+								// is valid (a conversion would replace malformed input)
+								alreadyInTarget = this.transcoder.validate(
+										new SequenceInputStream(new ByteArrayInputStream(
+												sample, 0, sampleLength), inputStreamData),
+										Charset.forName(encoding));
+								if (!alreadyInTarget) {
+									// read again from the beginning
 									inputStreamData.close();
+									fileData = new FileInputStream(file);
+									inputStreamData = fileData;
+									readSample(inputStreamData, sample);
+								}
+							}
+
+							// conversions which do not change bytes (BOM added or
+							// removed, ASCII content) are done by a copy
+							boolean copyBytes = false;
+							if (!alreadyInTarget && encoding != null
+									&& Charset.isSupported(encoding)) {
+								Charset from = Charset.forName(encoding);
+								Charset to = Charset.forName(toEncoding);
+								if (Transcoder.isAsciiCompatible(from)
+										&& Transcoder.isAsciiCompatible(to)) {
+									if (from.equals(to)) {
+										copyBytes = skip > 0 || addBOM
+												|| ouptputLocation != null;
+									} else if (!addBOM) {
+										copyBytes = Transcoder.isAscii(sample, skip,
+												sampleLength)
+												&& this.transcoder.isAscii(
+														fileData.getChannel(), sampleLength);
+									}
+								}
+								if (copyBytes && ouptputLocation == null && skip == 0
+										&& !addBOM && !writeBOM) {
+									// ASCII content : the copy would be the same file
+									copyBytes = false;
+									alreadyInTarget = true;
 								}
 							}
 
-							// open a new stream on the source file to prevent
-							// use
-							// of mark method by ICU
-							inputStreamData = this.inputStreamFromPath(file);
+							inputStreamData = new SequenceInputStream(
+									new ByteArrayInputStream(sample, skip,
+											sampleLength - skip), inputStreamData);
+							if (addBOM) {
+								// input is UTF-8 : BOM is added in front of it
+								inputStreamData = new SequenceInputStream(
+										new ByteArrayInputStream(UTF8_BOM_BYTES),
+										inputStreamData);
+							}
 
-							// reader
-							in = new InputStreamReader(inputStreamData,
-									encoding);
-							breader = new BufferedReader(in);
+							if (encoding != null && !Charset.isSupported(encoding)) {
 
-							if (encoding != null) {
+								result.append("ERROR : this file can not be converted (encoding \""
+										+ encoding + "\" is not supported).");
+							} else if (alreadyInTarget) {
+								result.append("Already in target : ");
+								result.append(toEncoding);
+								if ("UTF-8".equals(toEncoding)) {
+									if (utf8BOM != null) {
+										result.append(" (");
+										if (utf8BOM) {
+											result.append("with BOM");
+										} else {
+											result.append("without BOM");
+										}
+										result.append(")");
+									}
+								}
+							} else if (encoding != null) {
 								if (ouptputLocation == null) {
-									// new output file (tmp file)
-									outFile = new File(file + ".enctool");
-									// writer
-									out = new OutputStreamWriter(
-											new FileOutputStream(outFile),
-											toEncoding);
+									// new output file (tmp file in the same
+									// directory, replaces source file)
+									outFile = File.createTempFile(
+											"." + inputFile.getName() + ".",
+											".enctool", inputFile
+													.getAbsoluteFile()
+													.getParentFile());
 								} else {
 									// new output file (tmp file)
 									outFile = new File(ouptputLocation
 											+ File.separator
 											+ inputFile.getName());
-
-									// writer
-									out = new OutputStreamWriter(
-											new FileOutputStream(outFile),
-											toEncoding);
 								}
+								FileOutputStream fileOut = new FileOutputStream(
+										outFile);
+								out = fileOut;
 
-								if (encoding == "UTF-8" && utf8BOM != null) {
-									// detect utf8 BOM
-									if (isBOMUTF8Present(breader)) {
-										if (!utf8BOM) {
-											// no writting BOM (isBOMUTF8Present
-											// function write the BOM in
-											// firstCharTmp variable)
-											this.firstCharTmp = null;
-										}
-									} else {
-										if (utf8BOM) {
-											// add BOM
-											addBOM(out);
-										}
+								if (copyBytes) {
+									this.transcoder.copy(fileData.getChannel(),
+											skip, addBOM || writeBOM ? UTF8_BOM_BYTES
+													: null, fileOut.getChannel());
+								} else {
+									if (writeBOM) {
+										out.write(UTF8_BOM_BYTES);
 									}
+									this.transcoder.transcode(inputStreamData,
+											Charset.forName(encoding), out,
+											Charset.forName(toEncoding));
 								}
 
-								// first : writtinf first charactere is present
-								if (this.firstCharTmp != null) {
-									out.write(this.firstCharTmp);
-									this.firstCharTmp = null;
-								}
-								// then : writting other lines from reader
-								int c;
-								while ((c = breader.read()) != -1) {
-									out.write(c);
-								}
-
-								breader.close();
-								in.close();
+								inputStreamData.close();
 								out.close();
 
 								if (ouptputLocation == null) {
-									// delete source file
-									if (inputFile.delete()) {
-										// rename new file
-										if (!outFile.renameTo(new File(file))) {
-											result.append("ERROR : target file can not be renamed.");
-										} else {
-											result.append("Successful encoded from ");
-											result.append(encoding);
-											result.append(" to ");
-											result.append(toEncoding);
-											if ("UTF-8".equals(toEncoding)) {
-												if (utf8BOM != null) {
-													result.append(" (");
-													if (utf8BOM) {
-														result.append("with BOM");
-													} else {
-														result.append("without BOM");
-													}
-													result.append(")");
+									// replace source file by new file
+									if (!replaceFile(outFile, inputFile)) {
+										result.append("ERROR : target file can not be renamed.");
+									} else {
+										result.append("Successful encoded from ");
+										result.append(encoding);
+										result.append(" to ");
+										result.append(toEncoding);
+										if ("UTF-8".equals(toEncoding)) {
+											if (utf8BOM != null) {
+												result.append(" (");
+												if (utf8BOM) {
+													result.append("with BOM");
+												} else {
+													result.append("without BOM");
 												}
+												result.append(")");
 											}
 										}
-									} else {
-										result.append("ERROR : source file can not be deleted.");
+										this.appendReplacements(result);
 									}
 								} else {
 									result.append("Successful encoded from ");
@@ -441,6 +1295,7 @@ public class Engine {
 											result.append(")");
 										}
 									}
+									this.appendReplacements(result);
 								}
 
 							} else {
@@ -466,12 +1321,14 @@ public class Engine {
 						if (inputStreamData != null) {
 							inputStreamData.close();
 						}
-						if (in != null) {
-							in.close();
-						}
 						if (out != null) {
 							out.close();
 						}
+						if (ouptputLocation == null && outFile != null
+								&& outFile.exists()) {
+							// conversion failed : source file is unchanged
+							outFile.delete();
+						}
 					}
 
 				} else {
@@ -487,40 +1344,131 @@ public class Engine {
 	}
 
 	/**
-	 * Detect UTF-8 BOM. Reset reader before returning.
-	 * 
-	 * @param in
-	 *            Reader already opened.
-	 * @return True if BOM is present. (open a new reader "in")
+	 * @param file
+	 *            File.
+	 * @return True if the file starts with an UTF-8 BOM.
 	 * @throws IOException
+	 *             If reading file error.
 	 */
-	private boolean isBOMUTF8Present(BufferedReader in) throws IOException {
-		boolean result = false;
-		if (in != null) {
-			result = false;
-
-			StringBuilder sb = new StringBuilder();
-			char[] cbuf = new char[1];
-			in.read(cbuf, 0, 1);// 1 char
-			sb.append(cbuf);
-			if (UTF8_BOM.equals(sb.toString())) {
-				result = true;
+	private static boolean startsWithUTF8BOM(String file) throws IOException {
+		byte[] head = new byte[UTF8_BOM_BYTES.length];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return hasUTF8BOM(head, readSample(in, head));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Detect UTF-8 BOM on raw bytes.
+	 * 
+	 * @param sample
+	 *            First bytes of the file.
+	 * @param length
+	 *            Number of bytes in sample.
+	 * @return True if BOM is present.
+	 */
+	private static boolean hasUTF8BOM(byte[] sample, int length) {
+		if (length < UTF8_BOM_BYTES.length) {
+			return false;
+		}
+		for (int i = 0; i < UTF8_BOM_BYTES.length; i++) {
+			if (sample[i] != UTF8_BOM_BYTES[i]) {
+				return false;
 			}
-			this.firstCharTmp = sb.toString();
 		}
-		return result;
+		return true;
+	}
+
+	/**
+	 * Read the first bytes of a stream.
+	 * 
+	 * @param in
+	 *            Stream at its beginning.
+	 * @param sample
+	 *            Buffer filled as much as possible.
+	 * @return Number of bytes read.
+	 * @throws IOException
+	 *             In case of reading error.
+	 */
+	private static int readSample(InputStream in, byte[] sample)
+			throws IOException {
+		return readSample(in, sample, 0, sample.length);
 	}
 
 	/**
-	 * Add BOM.
+	 * Read the next bytes of a stream in a sample.
 	 * 
 	 * @param in
+	 *            Stream.
+	 * @param sample
+	 *            Buffer.
+	 * @param length
+	 *            Number of bytes already in sample.
+	 * @param end
+	 *            Number of bytes wanted in sample.
+	 * @return Number of bytes in sample : less than end at the end of the
+	 *         stream.
 	 * @throws IOException
+	 *             In case of reading error.
+	 */
+	private static int readSample(InputStream in, byte[] sample, int length,
+			int end) throws IOException {
+		int read;
+		while (length < end
+				&& (read = in.read(sample, length, end - length)) != -1) {
+			length += read;
+		}
+		return length;
+	}
+
+	/**
+	 * Replace a file by its converted copy with an atomic move, so that the
+	 * file is never missing or partially written. Permissions of the file are
+	 * kept.
+	 * 
+	 * @param converted
+	 *            Converted copy, in the same directory.
+	 * @param file
+	 *            File.
+	 * @return False if the file can not be replaced.
 	 */
-	private void addBOM(Writer out) throws IOException {
-		if (out != null) {
-			out.write(UTF8_BOM);
+	private static boolean replaceFile(File converted, File file) {
+		Path source = file.toPath();
+		Path target = converted.toPath();
+		try {
+			PosixFileAttributeView view = Files.getFileAttributeView(source,
+					PosixFileAttributeView.class);
+			if (view != null) {
+				Files.setPosixFilePermissions(target, view.readAttributes()
+						.permissions());
+			}
+			Files.move(target, source, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (IOException e) {
+			if (Enctool.DEBUG) {
+				e.printStackTrace();
+			}
+			return false;
+		}
+	}
 
+	/**
+	 * Add to a conversion report the number of replaced characters, if any.
+	 * 
+	 * @param result
+	 *            Report.
+	 */
+	private void appendReplacements(StringBuilder result) {
+		long malformed = this.transcoder.getMalformed();
+		long unmappable = this.transcoder.getUnmappable();
+		if (malformed > 0 || unmappable > 0) {
+			result.append(" - replaced : ");
+			result.append(malformed);
+			result.append(" malformed input sequence(s), ");
+			result.append(unmappable);
+			result.append(" unmappable character(s)");
 		}
 	}
 
@@ -549,7 +1497,76 @@ public class Engine {
 	public String convertEncodingRecursive(String dir, String subDir,
 			String pattern, String toEncoding, String ouptputLocation,
 			String inputEncoding, Boolean bom) throws IOException {
-		StringBuilder result = new StringBuilder();
+		StringWriter result = new StringWriter();
+		ReportSink sink = new WriterReportSink(result);
+		this.convertEncodingRecursive(dir, subDir, pattern, toEncoding,
+				ouptputLocation, inputEncoding, bom, sink);
+		sink.flush();
+		return result.toString();
+	}
+
+	/**
+	 * Convert text files recursively to other encoding. Report of each file is
+	 * written in the sink as soon as the file is converted.
+	 * 
+	 * @param dir
+	 *            Base directory for files search.
+	 * @param subDir
+	 *            Name of current sub directory (optional).
+	 * @param pattern
+	 *            Filename pattern.
+	 * @param toEncoding
+	 *            Target encoding.
+	 * @param ouptputLocation
+	 *            Output location (optionnal).
+	 * @param inputEncoding
+	 *            Forced input encoding (optional).
+	 * @param bom
+	 *            Add BOM to UTF-8 file output.
+	 * @param sink
+	 *            Report destination.
+	 * @throws IOException
+	 *             In case of IO exception.
+	 */
+	public void convertEncodingRecursive(String dir, String subDir,
+			String pattern, String toEncoding, String ouptputLocation,
+			String inputEncoding, Boolean bom, ReportSink sink)
+			throws IOException {
+		this.convertEncodingRecursive(dir, subDir, pattern, toEncoding,
+				ouptputLocation, inputEncoding, bom, 1, sink);
+	}
+
+	/**
+	 * Convert text files recursively to other encoding. Report of each file is
+	 * written in the sink as soon as it is known, in the same order whatever
+	 * the number of threads.
+	 * 
+	 * @param dir
+	 *            Base directory for files search.
+	 * @param subDir
+	 *            Name of current sub directory (optional).
+	 * @param pattern
+	 *            Filename pattern.
+	 * @param toEncoding
+	 *            Target encoding.
+	 * @param ouptputLocation
+	 *            Output location (optionnal).
+	 * @param inputEncoding
+	 *            Forced input encoding (optional).
+	 * @param bom
+	 *            Add BOM to UTF-8 file output.
+	 * @param threads
+	 *            Number of threads.
+	 * @param sink
+	 *            Report destination.
+	 * @throws IOException
+	 *             In case of IO exception.
+	 */
+	public void convertEncodingRecursive(String dir, final String subDir,
+			String pattern, final String toEncoding,
+			final String ouptputLocation, final String inputEncoding,
+			final Boolean bom, int threads, ReportSink sink)
+			throws IOException {
 		if (dir != null) {
 			// init pattern
 			Pattern p = null;
@@ -563,187 +1580,260 @@ public class Engine {
 				// INPUT ENCODING SUPPORTED ?
 				if (inputEncoding == null || Charset.isSupported(inputEncoding)) {
 
-					File file = new File(dir);
-					if (file != null && file.isDirectory()) {
-						File[] currentFiles = file.listFiles();
-						for (File fileTmp : currentFiles) {
-							if (fileTmp.isFile()) {
-								// FILE
-								boolean fileTmpMatch = true;
-								if (p != null) {
-									// filename match pattern ?
-									Matcher matcher = p.matcher(fileTmp
-											.getName());
-									if (!matcher.matches()) {
-										fileTmpMatch = false;
-									}
-								}
-
-								if (fileTmpMatch) {
-									// determine output location and do mkdirs
-									// if do
-									// not exist
-									StringBuilder outputLocationTmp = null;
-									if (ouptputLocation != null) {
-										outputLocationTmp = new StringBuilder(
-												ouptputLocation);
-										if (subDir != null) {
-											outputLocationTmp
-													.append(File.separator);
-											outputLocationTmp.append(subDir);
-											File fileOutputLocationTmp = new File(
-													outputLocationTmp
-															.toString());
-											if (!fileOutputLocationTmp.exists()) {
-												if (!fileOutputLocationTmp
-														.mkdirs()) {
-													if (Enctool.DEBUG) {
-														System.out
-																.println("ERROR when try to create output directory : "
-																		+ outputLocationTmp
-																				.toString());
-													}
-												}
-											}
-										}
-									}
-
-									String outputLocationTmpString = null;
-									if (outputLocationTmp != null) {
-										outputLocationTmpString = outputLocationTmp
-												.toString();
-									}
-
-									String reportTmp = this.convertEncoding(
-											fileTmp.getAbsolutePath(),
-											toEncoding,
-											outputLocationTmpString,
-											inputEncoding, bom);
-									result.append(fileTmp.getAbsolutePath());
-									result.append(" : ");
-									result.append(reportTmp);
-									result.append('\n');
+					final Path absoluteRoot = Paths.get(dir).toAbsolutePath();
+					// output directories already created, shared by threads
+					final Set<String> createdDirs = Collections
+							.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+					ParallelScanner.FileJob job = new ParallelScanner.FileJob() {
+						@Override
+						public String process(Engine engine, Path file,
+								BasicFileAttributes attrs) throws IOException {
+							String inputEncodingTmp = inputEncoding;
+							EncodingRules.Rule rule = engine.findRule(
+									absoluteRoot, file);
+							if (rule != null) {
+								if (rule.isSkip()) {
+									return "";
 								}
-							} else {
-								// DIRECTORY
-								// genrate new sub directory path
-								StringBuilder newSubDir = new StringBuilder();
-								if (subDir != null) {
-									newSubDir.append(subDir);
-									newSubDir.append(File.separator);
+								// a forced input encoding overrides rules
+								if (inputEncodingTmp == null
+										&& Files.isReadable(file)) {
+									inputEncodingTmp = engine.ruleEncoding(
+											rule, file.toString());
 								}
-								newSubDir.append(fileTmp.getName());
-
-								// recursive call
-								result.append(this.convertEncodingRecursive(
-										fileTmp.getAbsolutePath(),
-										newSubDir.toString(), pattern,
-										toEncoding, ouptputLocation,
-										inputEncoding, bom));
 							}
+							// determine output location and do mkdirs if do
+							// not exist
+							String outputLocationTmp = null;
+							if (ouptputLocation != null) {
+								outputLocationTmp = outputLocation(
+										ouptputLocation, subDir,
+										absoluteRoot.relativize(file.getParent()),
+										createdDirs);
+							}
+							return engine.convertEncoding(file.toString(),
+									attrs, toEncoding, outputLocationTmp,
+									inputEncodingTmp, bom);
 						}
-					} else {
-						result.append(dir + " : ERROR => It's not a directory.");
-						result.append('\n');
-					}
+					};
+					this.walk(dir, p, job, threads, sink);
 				} else {
-					result.append("ERROR : input encoding \"" + inputEncoding
+					sink.message("ERROR : input encoding \"" + inputEncoding
 							+ "\" is not supported. ");
 				}
 			} else {
-				result.append("ERROR : output encoding \"" + toEncoding
+				sink.message("ERROR : output encoding \"" + toEncoding
 						+ "\" is not supported. ");
 			}
 		}
-		return result.toString();
+	}
+
+	/**
+	 * Output directory of a converted file. Directory is created if it does
+	 * not exist.
+	 * 
+	 * @param ouptputLocation
+	 *            Output location.
+	 * @param subDir
+	 *            Sub directory given by caller (optional).
+	 * @param relativeDir
+	 *            Directory of the file, relative to the converted directory.
+	 * @param createdDirs
+	 *            Output directories already created (thread-safe set).
+	 * @return Output directory.
+	 */
+	private static String outputLocation(String ouptputLocation,
+			String subDir, Path relativeDir, Set<String> createdDirs) {
+		StringBuilder outputLocationTmp = new StringBuilder(ouptputLocation);
+		String relative = relativeDir.toString();
+		if (subDir != null || relative.length() > 0) {
+			outputLocationTmp.append(File.separator);
+			if (subDir != null) {
+				outputLocationTmp.append(subDir);
+				if (relative.length() > 0) {
+					outputLocationTmp.append(File.separator);
+				}
+			}
+			outputLocationTmp.append(relative);
+			String location = outputLocationTmp.toString();
+			if (!createdDirs.contains(location)) {
+				File fileOutputLocationTmp = new File(location);
+				// another thread may create it at the same time
+				if (!fileOutputLocationTmp.mkdirs()
+						&& !fileOutputLocationTmp.isDirectory()) {
+					if (Enctool.DEBUG) {
+						System.out
+								.println("ERROR when try to create output directory : "
+										+ location);
+					}
+				} else {
+					createdDirs.add(location);
+				}
+			}
+		}
+		return outputLocationTmp.toString();
+	}
+
+	/**
+	 * Report of a file or directory which can not be visited.
+	 * 
+	 * @param exc
+	 *            Error raised by the tree walk.
+	 * @return Report.
+	 */
+	private static String walkError(IOException exc) {
+		if (exc instanceof FileSystemLoopException) {
+			return "ERROR => File system loop.";
+		}
+		return "ERROR => Can not read directory.";
+	}
+
+	/**
+	 * Test a file name against the filename pattern.
+	 * 
+	 * @param p
+	 *            Filename pattern (optional).
+	 * @param file
+	 *            File.
+	 * @return True if there is no pattern or if file name matches.
+	 */
+	private static boolean matches(Pattern p, Path file) {
+		return p == null || p.matcher(file.getFileName().toString()).matches();
 	}
 
 	/**
 	 * Detect encoding.
 	 * 
-	 * @param bis
+	 * @param file
 	 *            File to analyse.
+	 * @param attrs
+	 *            Attributes of the file, used to look up the cache (optional).
+	 * @param sample
+	 *            First bytes of the file.
+	 * @param length
+	 *            Number of bytes in sample.
+	 * @param channel
+	 *            File, read to get windows.
 	 * @return Encoding Name if found, or null.
 	 * @throws IOException
-	 *             In case of reading error.
+	 *             In case of cache or reading error.
 	 */
-	private String simpleDetectEncoding(BufferedInputStream bis)
-			throws IOException {
-		String result = null;
-
-		if (bis != null) {
-			// analyse
-			CharsetDetector detector;
-			detector = new CharsetDetector();
-			detector.setText(bis);
-			CharsetMatch match = detector.detect();
-			result = match.getName();
+	private String simpleDetectEncoding(String file, BasicFileAttributes attrs,
+			byte[] sample, int length, FileChannel channel) throws IOException {
+		boolean useCache = this.cache != null && attrs != null
+				&& this.candidates == null;
+		Detection detection = null;
+		if (useCache) {
+			detection = this.cache.get(file, attrs);
 		}
-
-		return result;
+		if (detection == null) {
+			detection = this.detect(sample, length, channel, MAX_CONFIDENCES);
+			if (useCache) {
+				this.cache.put(file, attrs, detection);
+			}
+		}
+		return detection.getName();
 	}
 
 	/**
-	 * Generate report from a CharsetMatch.
+	 * Generate report from a detection.
 	 * 
-	 * @param match
+	 * @param detection
 	 *            Source of the generated report.
 	 * @param advanced
-	 *            true to add confidence and language in report.
+	 *            Display more informations (3 firsts confidences).
+	 * @param allConfidences
+	 *            Display all confidences.
 	 * @param differentFrom
 	 *            Display only file with different encoding that differentFrom.
-	 * @return Small report.
+	 * @return Report.
 	 */
-	private String generateReport(CharsetMatch match, boolean advanced,
-			String differentFrom) {
-		StringBuilder report = new StringBuilder();
+	private String generateReport(Detection detection, boolean advanced,
+			boolean allConfidences, String differentFrom) {
+		StringBuilder result = new StringBuilder();
+		if (detection.binary != null) {
+			result.append("BINARY => ");
+			result.append(detection.binary);
+		} else if (!advanced) {
+			// character set matches input data with the highest
+			// confidence
+			if (detection.size() > 0) {
+				result.append(this.generateReport(detection.names[0],
+						detection.confidences[0], detection.languages[0],
+						advanced, differentFrom));
 
-		if (match != null) {
-			String name = match.getName();
-			if (differentFrom == null || !differentFrom.equals(name)) {
-				if (!advanced) {
-					report.append(name);
-				} else {
-					int confidence = match.getConfidence();
-					String language = match.getLanguage();
-					// example : UTF-8,65,fr
-					report.append(name);
-					report.append(",");
-					report.append(confidence);
-					report.append(",");
-					if (language != null) {
-						report.append(language);
+				if ("UTF-8".equals(detection.names[0])) {
+					result.append(" (");
+					if (detection.bom) {
+						result.append("with BOM");
 					} else {
-						report.append("-");
+						result.append("without BOM");
 					}
+					result.append(")");
 				}
+			} else {
+				result.append("Encoding can not be determined :(");
 			}
-
 		} else {
-			report.append("Encoding can not be determined :(");
-		}
+			// all of the character sets that could match your input
+			// data
+			// with a non-zero confidence
+			int confidencesDisplayed = detection.size();
+			if (!allConfidences) {
+				if (MAX_CONFIDENCES < confidencesDisplayed) {
+					confidencesDisplayed = MAX_CONFIDENCES;
+				}
+			}
 
-		return report.toString();
+			for (int i = 0; i < confidencesDisplayed; i++) {
+				result.append(this.generateReport(detection.names[i],
+						detection.confidences[i], detection.languages[i],
+						advanced, null));
+				if (i + 1 < confidencesDisplayed) {
+					result.append(" / ");
+				}
+			}
+		}
+		return result.toString();
 	}
 
 	/**
-	 * Return a BufferedInputStream from a path file.
+	 * Generate report from a match.
 	 * 
-	 * @param path
-	 *            Path to a file.
-	 * @return BufferedInputStream or null if path is null.
-	 * @throws FileNotFoundException
-	 *             File not found.
+	 * @param name
+	 *            Encoding.
+	 * @param confidence
+	 *            Confidence.
+	 * @param language
+	 *            Language (optional).
+	 * @param advanced
+	 *            true to add confidence and language in report.
+	 * @param differentFrom
+	 *            Display only file with different encoding that differentFrom.
+	 * @return Small report.
 	 */
-	private BufferedInputStream inputStreamFromPath(String path)
-			throws FileNotFoundException {
-		BufferedInputStream bis = null;
-		if (path != null) {
-			FileInputStream fis = new FileInputStream(path);
-			bis = new BufferedInputStream(fis);
+	private String generateReport(String name, int confidence,
+			String language, boolean advanced, String differentFrom) {
+		StringBuilder report = new StringBuilder();
+
+		if (differentFrom == null || !differentFrom.equals(name)) {
+			if (!advanced) {
+				report.append(name);
+			} else {
+				// example : UTF-8,65,fr
+				report.append(name);
+				report.append(",");
+				report.append(confidence);
+				report.append(",");
+				if (language != null) {
+					report.append(language);
+				} else {
+					report.append("-");
+				}
+			}
 		}
 
-		return bis;
+		return report.toString();
 	}
 
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+/**
+ * Detections stored in an extended attribute of each file
+ * ("user.enctool.detection" on Linux). Results are shared by all scans of the
+ * file system and follow files which are moved.
+ *
+ * A stored detection is used only while size and modification time of the
+ * file are unchanged. Files whose file system does not support user defined
+ * attributes, or which can not be written, are always analysed.
+ *
+ * Value format : size;mtime;bom;name,confidence,language;... (language is "-"
+ * when unknown).
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class FileAttributeStore implements DetectionStore {
+
+	private static final String ATTRIBUTE = "enctool.detection";
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	@Override
+	public Detection get(String path, BasicFileAttributes attrs) {
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(
+				Paths.get(path), UserDefinedFileAttributeView.class);
+		if (view == null) {
+			return null;
+		}
+		String value;
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(view.size(ATTRIBUTE));
+			view.read(ATTRIBUTE, buffer);
+			buffer.flip();
+			value = ASCII.decode(buffer).toString();
+		} catch (IOException e) {
+			// no attribute
+			return null;
+		}
+
+		String[] fields = value.split(";");
+		if (fields.length < 3
+				|| !fields[0].equals(Long.toString(attrs.size()))
+				|| !fields[1].equals(Long.toString(attrs.lastModifiedTime()
+						.toMillis()))) {
+			return null;
+		}
+		int size = fields.length - 3;
+		String[] names = new String[size];
+		int[] confidences = new int[size];
+		String[] languages = new String[size];
+		for (int i = 0; i < size; i++) {
+			String[] match = fields[i + 3].split(",");
+			if (match.length != 3) {
+				return null;
+			}
+			names[i] = match[0];
+			try {
+				confidences[i] = Integer.parseInt(match[1]);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			if (!"-".equals(match[2])) {
+				languages[i] = match[2];
+			}
+		}
+		return new Detection(names, confidences, languages,
+				"1".equals(fields[2]));
+	}
+
+	@Override
+	public void put(String path, BasicFileAttributes attrs,
+			Detection detection) {
+		UserDefinedFileAttributeView view = Files.getFileAttributeView(
+				Paths.get(path), UserDefinedFileAttributeView.class);
+		if (view == null) {
+			return;
+		}
+		StringBuilder value = new StringBuilder();
+		value.append(attrs.size());
+		value.append(";");
+		value.append(attrs.lastModifiedTime().toMillis());
+		value.append(";");
+		value.append(detection.bom ? "1" : "0");
+		int size = Math.min(detection.size(), DetectionCache.MAX_MATCHES);
+		for (int i = 0; i < size; i++) {
+			value.append(";");
+			value.append(detection.names[i]);
+			value.append(",");
+			value.append(detection.confidences[i]);
+			value.append(",");
+			value.append(detection.languages[i] != null ? detection.languages[i]
+					: "-");
+		}
+		try {
+			view.write(ATTRIBUTE, ASCII.encode(value.toString()));
+		} catch (IOException e) {
+			// not supported by the file system or no permission
+			if (Enctool.DEBUG) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+/**
+ * Parallel recursive processing of files (encoding detection or conversion).
+ *
+ * Directory listings and file jobs are ForkJoinPool tasks, so idle workers
+ * steal pending work. Each worker thread uses its own Engine. Reports are
+ * written in the sink in the same order as the sequential scan : pending jobs
+ * are kept in a bounded reorder buffer and consumed from its head.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+class ParallelScanner {
+
+	/**
+	 * Pending jobs allowed per worker thread.
+	 */
+	private static final int PENDING_PER_THREAD = 16;
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Reorder buffer capacity.
+	 */
+	private final int maxPending;
+
+	/**
+	 * One Engine per worker thread (Engine is not thread-safe).
+	 */
+	private final ThreadLocal<Engine> engines = new ThreadLocal<Engine>() {
+		@Override
+		protected Engine initialValue() {
+			return settings.copy();
+		}
+	};
+
+	/**
+	 * Engine whose settings (cache shared by engines, sampling) are copied.
+	 */
+	private final Engine settings;
+
+	/**
+	 * Paths walked (optional), and absolute path of the walked directory.
+	 */
+	private PathFilter filter;
+	private Path root;
+
+	/**
+	 * @param threads
+	 *            Number of worker threads.
+	 * @param settings
+	 *            Engine whose settings are used by worker threads.
+	 */
+	ParallelScanner(int threads, Engine settings) {
+		this.pool = new ForkJoinPool(threads);
+		this.maxPending = threads * PENDING_PER_THREAD;
+		this.settings = settings;
+	}
+
+	/**
+	 * Work done on each file by a worker thread.
+	 */
+	interface FileJob {
+
+		/**
+		 * @param engine
+		 *            Engine of the worker thread.
+		 * @param file
+		 *            Regular file.
+		 * @param attrs
+		 *            Attributes read while listing its directory.
+		 * @return Report, or "" if nothing must be reported.
+		 * @throws IOException
+		 *             In case of IO exception.
+		 */
+		String process(Engine engine, Path file, BasicFileAttributes attrs)
+				throws IOException;
+	}
+
+	/**
+	 * Process files recursively in a directory.
+	 *
+	 * @param dir
+	 *            Directory.
+	 * @param p
+	 *            Filename pattern (optional).
+	 * @param filter
+	 *            Paths walked (optional) : excluded directories are not
+	 *            listed.
+	 * @param job
+	 *            Work done on each file.
+	 * @param sink
+	 *            Report destination.
+	 * @throws IOException
+	 *             If reading file error.
+	 */
+	void scan(String dir, Pattern p, PathFilter filter, FileJob job,
+			ReportSink sink) throws IOException {
+		Path root = Paths.get(dir);
+		if (Files.isDirectory(root)) {
+			Deque<FileTask> pending = new ArrayDeque<FileTask>();
+			this.filter = filter;
+			this.root = root.toAbsolutePath();
+			try {
+				this.scan(this.root, p, job, pending, sink);
+				while (!pending.isEmpty()) {
+					this.report(pending.removeFirst(), sink);
+				}
+			} finally {
+				this.pool.shutdownNow();
+			}
+		} else {
+			sink.report(dir, "ERROR => It's not a directory.");
+		}
+	}
+
+	/**
+	 * Submit jobs in listing order, depth first, as the sequential scan does.
+	 * Directories being scanned are kept in an explicit stack (no recursion).
+	 */
+	private void scan(Path root, Pattern p, FileJob job,
+			Deque<FileTask> pending, ReportSink sink) throws IOException {
+		Deque<Listing> stack = new ArrayDeque<Listing>();
+		Listing rootListing = this.pool.submit(
+				new ListingTask(root, null, true)).join();
+		rootListing.key = Files.readAttributes(root, BasicFileAttributes.class)
+				.fileKey();
+		if (this.enter(rootListing, pending, sink)) {
+			stack.push(rootListing);
+		}
+
+		while (!stack.isEmpty()) {
+			Listing listing = stack.peek();
+			if (listing.next >= listing.entries.length) {
+				stack.pop();
+				continue;
+			}
+			int i = listing.next++;
+			Path fileTmp = listing.entries[i];
+			BasicFileAttributes attrs = listing.attrs[i];
+			if (attrs != null && attrs.isRegularFile()) {
+				if (p == null
+						|| p.matcher(fileTmp.getFileName().toString())
+								.matches()) {
+					this.queue(new FileTask(fileTmp, attrs, job), pending,
+							sink);
+				}
+			} else if (listing.subListings[i] != null) {
+				// directory
+				if (!listing.subListings[i].isDone()) {
+					// the walk waits : do not hold the reports
+					sink.flush();
+				}
+				Listing subListing = listing.subListings[i].join();
+				listing.subListings[i] = null;
+				subListing.key = attrs.fileKey();
+				if (isLoop(stack, subListing.key)) {
+					this.queue(new FileTask(fileTmp,
+							"ERROR => File system loop."), pending, sink);
+				} else if (this.enter(subListing, pending, sink)) {
+					stack.push(subListing);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test if a directory is already being scanned (symbolic link to one of
+	 * its parents).
+	 */
+	private static boolean isLoop(Deque<Listing> stack, Object key) {
+		if (key != null) {
+			for (Listing parent : stack) {
+				if (key.equals(parent.key)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Start scanning a listed directory : prefetch listings of its sub
+	 * directories not already forked by the listing task.
+	 * 
+	 * @return False if directory can not be read.
+	 */
+	private boolean enter(Listing listing, Deque<FileTask> pending,
+			ReportSink sink) throws IOException {
+		if (listing.entries == null) {
+			this.queue(new FileTask(listing.dir,
+					"ERROR => Can not read directory."), pending, sink);
+			return false;
+		}
+		for (int i = 0; i < listing.entries.length; i++) {
+			if (listing.attrs[i] != null && listing.attrs[i].isDirectory()
+					&& listing.subListings[i] == null) {
+				listing.subListings[i] = this.pool.submit(new ListingTask(
+						listing.entries[i], listing.scope, true));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Submit a task and add it at the end of the reorder buffer. When the
+	 * buffer is full, the report of its head is written first. Reports of
+	 * the completed jobs at the head of the buffer are written too.
+	 */
+	private void queue(FileTask task, Deque<FileTask> pending,
+			ReportSink sink) throws IOException {
+		if (pending.size() >= this.maxPending) {
+			this.report(pending.removeFirst(), sink);
+		}
+		while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+			this.report(pending.removeFirst(), sink);
+		}
+		this.pool.execute(task);
+		pending.addLast(task);
+	}
+
+	/**
+	 * Wait for a job and write its report. Reports already written are
+	 * flushed before waiting.
+	 */
+	private void report(FileTask task, ReportSink sink) throws IOException {
+		if (!task.isDone()) {
+			sink.flush();
+		}
+		String reportTmp = task.join();
+		if (task.failure != null) {
+			throw task.failure;
+		}
+		if (!"".equals(reportTmp)) {
+			// if different from encoding parameter
+			sink.report(task.path.toString(), reportTmp);
+		}
+	}
+
+	/**
+	 * Content of a directory. Attributes of entries are read by the worker
+	 * which lists the directory.
+	 */
+	private static class Listing {
+		Path dir;
+		Path[] entries;
+		/**
+		 * Attributes of entries (null for broken links).
+		 */
+		BasicFileAttributes[] attrs;
+		ForkJoinTask<Listing>[] subListings;
+		/**
+		 * File key of the directory.
+		 */
+		Object key;
+		/**
+		 * Ignore patterns of the entries (see PathFilter).
+		 */
+		PathFilter.Scope scope;
+		/**
+		 * Next entry to scan.
+		 */
+		int next;
+	}
+
+	/**
+	 * List a directory. Sub directories listings are forked one level ahead so
+	 * that idle workers can steal them. Entries rejected by the filter are
+	 * dropped : excluded sub directories are never listed.
+	 */
+	private class ListingTask extends RecursiveTask<Listing> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+
+		/**
+		 * Scope of the parent directory.
+		 */
+		private final PathFilter.Scope parentScope;
+
+		private final boolean prefetch;
+
+		ListingTask(Path dir, PathFilter.Scope parentScope, boolean prefetch) {
+			this.dir = dir;
+			this.parentScope = parentScope;
+			this.prefetch = prefetch;
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		protected Listing compute() {
+			Listing listing = new Listing();
+			listing.dir = this.dir;
+			if (filter != null) {
+				listing.scope = filter.enter(this.parentScope, this.dir);
+			}
+			List<Path> entries = new ArrayList<Path>();
+			DirectoryStream<Path> stream = null;
+			try {
+				stream = Files.newDirectoryStream(this.dir);
+				for (Path entry : stream) {
+					entries.add(entry);
+				}
+			} catch (IOException e) {
+				// directory can not be read
+				return listing;
+			} catch (DirectoryIteratorException e) {
+				return listing;
+			} finally {
+				if (stream != null) {
+					try {
+						stream.close();
+					} catch (IOException e) {
+						if (Enctool.DEBUG) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}
+
+			List<Path> kept = new ArrayList<Path>(entries.size());
+			List<BasicFileAttributes> keptAttrs = new ArrayList<BasicFileAttributes>(
+					entries.size());
+			for (Path entry : entries) {
+				BasicFileAttributes attrs = null;
+				try {
+					attrs = Files.readAttributes(entry,
+							BasicFileAttributes.class);
+				} catch (IOException e) {
+					// broken link : neither a file nor a directory
+				}
+				if (attrs != null
+						&& filter != null
+						&& !filter.accepts(listing.scope, root, entry,
+								attrs.isDirectory())) {
+					continue;
+				}
+				kept.add(entry);
+				keptAttrs.add(attrs);
+			}
+
+			int size = kept.size();
+			listing.entries = kept.toArray(new Path[size]);
+			listing.attrs = keptAttrs
+					.toArray(new BasicFileAttributes[size]);
+			listing.subListings = new ForkJoinTask[size];
+			for (int i = 0; i < size; i++) {
+				if (listing.attrs[i] != null && listing.attrs[i].isDirectory()
+						&& this.prefetch) {
+					listing.subListings[i] = new ListingTask(
+							listing.entries[i], listing.scope, false).fork();
+				}
+			}
+			return listing;
+		}
+	}
+
+	/**
+	 * Job of a single file, done with the Engine of the current worker.
+	 */
+	private class FileTask extends RecursiveTask<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path path;
+		private final BasicFileAttributes attrs;
+		private final FileJob job;
+
+		/**
+		 * Report known without reading the file (error).
+		 */
+		private final String error;
+
+		private IOException failure;
+
+		FileTask(Path path, BasicFileAttributes attrs, FileJob job) {
+			this.path = path;
+			this.attrs = attrs;
+			this.job = job;
+			this.error = null;
+		}
+
+		FileTask(Path path, String error) {
+			this.path = path;
+			this.attrs = null;
+			this.job = null;
+			this.error = error;
+		}
+
+		@Override
+		protected String compute() {
+			if (this.error != null) {
+				return this.error;
+			}
+			String reportTmp = null;
+			try {
+				reportTmp = this.job.process(engines.get(), this.path,
+						this.attrs);
+			} catch (IOException e) {
+				this.failure = e;
+			}
+			return reportTmp;
+		}
+	}
+
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Select the files and directories of a tree walk from their paths : include
+ * and exclude globs, and ignore files (.gitignore and .ignore) of the walked
+ * directories. Directories are tested before they are listed, so that
+ * excluded subtrees are never read.
+ *
+ * Globs follow the rules file convention : a glob without "/" is matched
+ * against names, otherwise against paths relative to the walked directory.
+ * Includes select files ; a directory is pruned only when no include can
+ * match below it. Ignore files follow the gitignore syntax (negation with
+ * "!", directories only with a trailing "/", "**"), deeper files having
+ * priority.
+ *
+ * A filter is immutable and shared by threads.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+class PathFilter {
+
+	private static final String[] IGNORE_FILES = { ".gitignore", ".ignore" };
+
+	private static final String GIT_DIR = ".git";
+
+	/**
+	 * Ignore patterns in effect in a directory : those of its ignore files,
+	 * then those of its parents.
+	 */
+	static final class Scope {
+
+		private final Scope parent;
+
+		/**
+		 * Directory of the ignore files.
+		 */
+		private final Path dir;
+
+		private final IgnorePattern[] patterns;
+
+		Scope(Scope parent, Path dir, IgnorePattern[] patterns) {
+			this.parent = parent;
+			this.dir = dir;
+			this.patterns = patterns;
+		}
+	}
+
+	/**
+	 * Line of an ignore file.
+	 */
+	private static final class IgnorePattern {
+
+		private final Pattern regex;
+
+		/**
+		 * Matched against the path relative to the ignore file directory,
+		 * instead of the name.
+		 */
+		private final boolean anchored;
+
+		private final boolean directoryOnly;
+
+		private final boolean negated;
+
+		IgnorePattern(Pattern regex, boolean anchored, boolean directoryOnly,
+				boolean negated) {
+			this.regex = regex;
+			this.anchored = anchored;
+			this.directoryOnly = directoryOnly;
+			this.negated = negated;
+		}
+	}
+
+	/**
+	 * Glob of the command line.
+	 */
+	private static final class Glob {
+
+		private final PathMatcher matcher;
+
+		private final boolean nameOnly;
+
+		/**
+		 * Directory matched by a glob ending with "/**" (null otherwise).
+		 */
+		private final PathMatcher directoryMatcher;
+
+		/**
+		 * First names of the glob without wildcard (paths only).
+		 */
+		private final String[] prefix;
+
+		Glob(String glob) {
+			this.matcher = FileSystems.getDefault().getPathMatcher(
+					"glob:" + glob);
+			this.nameOnly = glob.indexOf('/') < 0;
+			if (glob.endsWith("/**") && glob.length() > 3) {
+				this.directoryMatcher = FileSystems.getDefault()
+						.getPathMatcher("glob:"
+								+ glob.substring(0, glob.length() - 3));
+			} else {
+				this.directoryMatcher = null;
+			}
+			List<String> names = new ArrayList<String>();
+			if (!this.nameOnly) {
+				for (String name : glob.split("/")) {
+					if (hasWildcard(name)) {
+						break;
+					}
+					names.add(name);
+				}
+			}
+			this.prefix = names.toArray(new String[names.size()]);
+		}
+
+		boolean matches(Path relative, boolean directory) {
+			if (this.nameOnly) {
+				Path name = relative.getFileName();
+				return name != null && this.matcher.matches(name);
+			}
+			return this.matcher.matches(relative)
+					|| (directory && this.directoryMatcher != null
+							&& this.directoryMatcher.matches(relative));
+		}
+
+		/**
+		 * @return True if a file below the directory may match.
+		 */
+		boolean mayMatchBelow(Path relativeDir) {
+			if (this.nameOnly) {
+				return true;
+			}
+			int common = Math.min(relativeDir.getNameCount(),
+					this.prefix.length);
+			for (int i = 0; i < common; i++) {
+				if (!this.prefix[i].equals(relativeDir.getName(i).toString())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static boolean hasWildcard(String name) {
+			for (int i = 0; i < name.length(); i++) {
+				if ("*?[{\\".indexOf(name.charAt(i)) >= 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private final Glob[] includes;
+
+	private final Glob[] excludes;
+
+	/**
+	 * Read .gitignore and .ignore files.
+	 */
+	private final boolean ignoreFiles;
+
+	/**
+	 * @param includes
+	 *            Globs of the files selected (all files if empty).
+	 * @param excludes
+	 *            Globs of the files and directories excluded.
+	 * @param ignoreFiles
+	 *            Exclude files and directories listed in the .gitignore and
+	 *            .ignore files of the walked directories, and .git
+	 *            directories.
+	 * @throws IllegalArgumentException
+	 *             If a glob is invalid.
+	 */
+	PathFilter(List<String> includes, List<String> excludes,
+			boolean ignoreFiles) {
+		this.includes = globs(includes);
+		this.excludes = globs(excludes);
+		this.ignoreFiles = ignoreFiles;
+	}
+
+	private static Glob[] globs(List<String> patterns) {
+		Glob[] globs = new Glob[patterns.size()];
+		for (int i = 0; i < globs.length; i++) {
+			globs[i] = new Glob(patterns.get(i));
+		}
+		return globs;
+	}
+
+	/**
+	 * Enter a directory : read its ignore files.
+	 *
+	 * @param parent
+	 *            Scope of the parent directory, or null for the walked
+	 *            directory.
+	 * @param dir
+	 *            Directory (accepted by the filter).
+	 * @return Scope of the entries of the directory.
+	 */
+	Scope enter(Scope parent, Path dir) {
+		if (!this.ignoreFiles) {
+			return parent;
+		}
+		List<IgnorePattern> patterns = new ArrayList<IgnorePattern>();
+		for (String ignoreFile : IGNORE_FILES) {
+			readIgnoreFile(dir.resolve(ignoreFile), patterns);
+		}
+		if (patterns.isEmpty()) {
+			return parent;
+		}
+		return new Scope(parent, dir,
+				patterns.toArray(new IgnorePattern[patterns.size()]));
+	}
+
+	/**
+	 * Test if a file or directory is walked.
+	 *
+	 * @param scope
+	 *            Scope of its directory.
+	 * @param root
+	 *            Walked directory.
+	 * @param path
+	 *            File or directory below root.
+	 * @param directory
+	 *            True for a directory.
+	 * @return False if the file, or the directory and all its content, are
+	 *         skipped.
+	 */
+	boolean accepts(Scope scope, Path root, Path path, boolean directory) {
+		Path relative = root.relativize(path);
+		for (Glob exclude : this.excludes) {
+			if (exclude.matches(relative, directory)) {
+				return false;
+			}
+		}
+		if (this.ignoreFiles) {
+			if (directory && GIT_DIR.equals(path.getFileName().toString())) {
+				return false;
+			}
+			if (isIgnored(scope, path, directory)) {
+				return false;
+			}
+		}
+		if (this.includes.length == 0) {
+			return true;
+		}
+		for (Glob include : this.includes) {
+			if (directory ? include.mayMatchBelow(relative) : include
+					.matches(relative, false)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The last matching pattern of the deepest ignore file decides.
+	 */
+	private static boolean isIgnored(Scope scope, Path path, boolean directory) {
+		String name = path.getFileName().toString();
+		for (Scope s = scope; s != null; s = s.parent) {
+			String relative = null;
+			for (int i = s.patterns.length - 1; i >= 0; i--) {
+				IgnorePattern pattern = s.patterns[i];
+				if (pattern.directoryOnly && !directory) {
+					continue;
+				}
+				String subject = name;
+				if (pattern.anchored) {
+					if (relative == null) {
+						relative = s.dir.relativize(path).toString()
+								.replace(File.separatorChar, '/');
+					}
+					subject = relative;
+				}
+				if (pattern.regex.matcher(subject).matches()) {
+					return !pattern.negated;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Add the patterns of an ignore file, if it exists.
+	 */
+	private static void readIgnoreFile(Path file, List<IgnorePattern> patterns) {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return;
+		} catch (IOException e) {
+			// unreadable or not UTF-8 : nothing is ignored
+			if (Enctool.DEBUG) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		for (String line : lines) {
+			IgnorePattern pattern = parseIgnoreLine(line);
+			if (pattern != null) {
+				patterns.add(pattern);
+			}
+		}
+	}
+
+	/**
+	 * @return Pattern of a line of an ignore file, or null for blank lines
+	 *         and comments.
+	 */
+	private static IgnorePattern parseIgnoreLine(String line) {
+		String glob = line;
+		// trailing spaces are ignored unless escaped
+		int end = glob.length();
+		while (end > 0 && glob.charAt(end - 1) == ' '
+				&& (end < 2 || glob.charAt(end - 2) != '\\')) {
+			end--;
+		}
+		glob = glob.substring(0, end);
+		if (glob.length() == 0 || glob.charAt(0) == '#') {
+			return null;
+		}
+		boolean negated = false;
+		if (glob.charAt(0) == '!') {
+			negated = true;
+			glob = glob.substring(1);
+		} else if (glob.startsWith("\\!") || glob.startsWith("\\#")) {
+			glob = glob.substring(1);
+		}
+		boolean directoryOnly = false;
+		if (glob.endsWith("/")) {
+			directoryOnly = true;
+			glob = glob.substring(0, glob.length() - 1);
+		}
+		boolean anchored = glob.indexOf('/') >= 0;
+		if (glob.startsWith("/")) {
+			glob = glob.substring(1);
+		}
+		if (glob.length() == 0) {
+			return null;
+		}
+		try {
+			return new IgnorePattern(Pattern.compile(toRegex(glob)), anchored,
+					directoryOnly, negated);
+		} catch (IllegalArgumentException e) {
+			// invalid character set : the line is ignored, as git does
+			return null;
+		}
+	}
+
+	/**
+	 * Translate a gitignore glob : "*" and "?" do not match "/", "**" matches
+	 * any number of directories.
+	 */
+	private static String toRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int length = glob.length();
+		for (int i = 0; i < length; i++) {
+			char c = glob.charAt(i);
+			boolean segmentStart = i == 0 || glob.charAt(i - 1) == '/';
+			if (c == '*' && i + 1 < length && glob.charAt(i + 1) == '*'
+					&& segmentStart
+					&& (i + 2 == length || glob.charAt(i + 2) == '/')) {
+				if (i + 2 == length) {
+					regex.append(".*");
+				} else {
+					// "**/" : any directories, or none
+					regex.append("(?:.*/)?");
+				}
+				i += 2;
+			} else if (c == '*') {
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else if (c == '[' && glob.indexOf(']', i + 1) > i + 1) {
+				int close = glob.indexOf(']', i + 1);
+				String set = glob.substring(i + 1, close);
+				regex.append('[');
+				if (set.charAt(0) == '!') {
+					regex.append('^');
+					set = set.substring(1);
+				}
+				regex.append(set.replace("\\", "\\\\").replace("[", "\\["));
+				regex.append(']');
+				i = close;
+			} else {
+				if (c == '\\' && i + 1 < length) {
+					// escaped character
+					c = glob.charAt(++i);
+				}
+				if (!Character.isLetterOrDigit(c)) {
+					regex.append('\\');
+				}
+				regex.append(c);
+			}
+		}
+		return regex.toString();
+	}
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+
+/**
+ * Destination of the reports produced by recursive functions. Each result is
+ * written as soon as it is known.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public interface ReportSink {
+
+	/**
+	 * Write the report of one file or directory.
+	 *
+	 * @param path
+	 *            Path of the file or directory.
+	 * @param report
+	 *            Report.
+	 * @throws IOException
+	 *             In case of writing error.
+	 */
+	void report(String path, String report) throws IOException;
+
+	/**
+	 * Write a message which is not related to a file.
+	 *
+	 * @param message
+	 *            Message.
+	 * @throws IOException
+	 *             In case of writing error.
+	 */
+	void message(String message) throws IOException;
+
+	/**
+	 * Write pending reports.
+	 *
+	 * @throws IOException
+	 *             In case of writing error.
+	 */
+	void flush() throws IOException;
+
+}
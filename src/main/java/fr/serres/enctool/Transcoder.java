@@ -0,0 +1,385 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Convert a byte stream from an encoding to another one, by chunks, through
+ * reusable buffers. Malformed input is replaced by U+FFFD and characters which
+ * can not be encoded by the replacement of the target encoding (as
+ * InputStreamReader and OutputStreamWriter do), and both are counted.
+ *
+ * Conversions which do not change bytes (BOM added or removed, ASCII content)
+ * are done by a file to file copy, without decoding.
+ *
+ * A transcoder is not thread-safe.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+class Transcoder {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * High bit of 8 bytes.
+	 */
+	private static final long NON_ASCII_MASK = 0x8080808080808080L;
+
+	private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+	private final ByteBuffer output = ByteBuffer.allocate(BUFFER_SIZE);
+
+	private CharsetDecoder decoder;
+	private CharsetEncoder encoder;
+
+	/**
+	 * Statistics of the last conversion.
+	 */
+	private long bytesRead;
+	private long bytesWritten;
+	private long malformed;
+	private long unmappable;
+
+	/**
+	 * Convert a stream. Streams are not closed.
+	 *
+	 * @param in
+	 *            Input.
+	 * @param from
+	 *            Input encoding.
+	 * @param out
+	 *            Output.
+	 * @param to
+	 *            Output encoding.
+	 * @throws IOException
+	 *             In case of IO exception.
+	 */
+	void transcode(InputStream in, Charset from, OutputStream out, Charset to)
+			throws IOException {
+		this.reset(from, to);
+		byte[] inputArray = this.input.array();
+		boolean endOfInput = false;
+		while (!endOfInput) {
+			int read = in.read(inputArray, this.input.position(),
+					this.input.remaining());
+			if (read == -1) {
+				endOfInput = true;
+			} else {
+				this.input.position(this.input.position() + read);
+				this.bytesRead += read;
+			}
+			this.input.flip();
+			this.decode(out, endOfInput);
+			this.input.compact();
+		}
+		while (this.decoder.flush(this.chars).isOverflow()) {
+			this.encode(out, false);
+		}
+		this.encode(out, true);
+		while (this.encoder.flush(this.output).isOverflow()) {
+			this.drain(out);
+		}
+		this.drain(out);
+	}
+
+	/**
+	 * Copy bytes of a file without decoding them, for conversions which do not
+	 * change them.
+	 *
+	 * @param in
+	 *            Input file.
+	 * @param position
+	 *            First byte copied.
+	 * @param prefix
+	 *            Bytes written before the copy (optional).
+	 * @param out
+	 *            Output file.
+	 * @throws IOException
+	 *             In case of IO exception.
+	 */
+	void copy(FileChannel in, long position, byte[] prefix, FileChannel out)
+			throws IOException {
+		this.bytesRead = 0;
+		this.bytesWritten = 0;
+		this.malformed = 0;
+		this.unmappable = 0;
+		if (prefix != null) {
+			ByteBuffer buffer = ByteBuffer.wrap(prefix);
+			while (buffer.hasRemaining()) {
+				this.bytesWritten += out.write(buffer);
+			}
+		}
+		long size = in.size();
+		while (position < size) {
+			long transferred = in.transferTo(position, size - position, out);
+			position += transferred;
+			this.bytesRead += transferred;
+			this.bytesWritten += transferred;
+		}
+	}
+
+	/**
+	 * Test if the end of a file contains only ASCII bytes. Position of the
+	 * channel is not changed.
+	 *
+	 * @param in
+	 *            Input file.
+	 * @param position
+	 *            First byte tested.
+	 * @return True if no byte is greater than 0x7F.
+	 * @throws IOException
+	 *             In case of IO exception.
+	 */
+	boolean isAscii(FileChannel in, long position) throws IOException {
+		this.input.clear();
+		int read;
+		while ((read = in.read(this.input, position)) != -1) {
+			position += read;
+			this.input.flip();
+			while (this.input.remaining() >= 8) {
+				if ((this.input.getLong() & NON_ASCII_MASK) != 0) {
+					return false;
+				}
+			}
+			while (this.input.hasRemaining()) {
+				if (this.input.get() < 0) {
+					return false;
+				}
+			}
+			this.input.clear();
+		}
+		return true;
+	}
+
+	/**
+	 * Test if bytes are ASCII.
+	 *
+	 * @param bytes
+	 *            Bytes.
+	 * @param offset
+	 *            First byte tested.
+	 * @param length
+	 *            End of tested bytes (excluded).
+	 * @return True if no byte is greater than 0x7F.
+	 */
+	static boolean isAscii(byte[] bytes, int offset, int length) {
+		for (int i = offset; i < length; i++) {
+			if (bytes[i] < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Test if ASCII characters are encoded by the same bytes in an encoding
+	 * (and no other character uses these bytes).
+	 *
+	 * @param charset
+	 *            Encoding.
+	 * @return True for US-ASCII, UTF-8, ISO-8859-x and windows-125x.
+	 */
+	static boolean isAsciiCompatible(Charset charset) {
+		String name = charset.name();
+		return "US-ASCII".equals(name) || "UTF-8".equals(name)
+				|| name.startsWith("ISO-8859-")
+				|| name.startsWith("windows-125");
+	}
+
+	/**
+	 * Test if a stream can be decoded without error. Stream is not closed.
+	 *
+	 * @param in
+	 *            Input.
+	 * @param charset
+	 *            Input encoding.
+	 * @return False at the first malformed input sequence.
+	 * @throws IOException
+	 *             In case of IO exception.
+	 */
+	boolean validate(InputStream in, Charset charset) throws IOException {
+		this.reset(charset, null);
+		byte[] inputArray = this.input.array();
+		boolean endOfInput = false;
+		while (!endOfInput) {
+			int read = in.read(inputArray, this.input.position(),
+					this.input.remaining());
+			if (read == -1) {
+				endOfInput = true;
+			} else {
+				this.input.position(this.input.position() + read);
+				this.bytesRead += read;
+			}
+			this.input.flip();
+			CoderResult result;
+			do {
+				// decoded chars are not used
+				this.chars.clear();
+				result = this.decoder.decode(this.input, this.chars,
+						endOfInput);
+				if (result.isError()) {
+					return false;
+				}
+			} while (result.isOverflow());
+			this.input.compact();
+		}
+		this.chars.clear();
+		return !this.decoder.flush(this.chars).isError();
+	}
+
+	/**
+	 * @return Bytes read by the last conversion.
+	 */
+	long getBytesRead() {
+		return this.bytesRead;
+	}
+
+	/**
+	 * @return Bytes written by the last conversion.
+	 */
+	long getBytesWritten() {
+		return this.bytesWritten;
+	}
+
+	/**
+	 * @return Malformed input sequences replaced by the last conversion.
+	 */
+	long getMalformed() {
+		return this.malformed;
+	}
+
+	/**
+	 * @return Characters the last conversion could not encode.
+	 */
+	long getUnmappable() {
+		return this.unmappable;
+	}
+
+	/**
+	 * Prepare coders and buffers. Coders are kept while encodings do not
+	 * change.
+	 *
+	 * @param to
+	 *            Output encoding, or null if nothing is encoded.
+	 */
+	private void reset(Charset from, Charset to) {
+		if (this.decoder == null || !this.decoder.charset().equals(from)) {
+			this.decoder = from.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT);
+		} else {
+			this.decoder.reset();
+		}
+		if (to != null) {
+			if (this.encoder == null || !this.encoder.charset().equals(to)) {
+				this.encoder = to.newEncoder()
+						.onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT);
+			} else {
+				this.encoder.reset();
+			}
+		}
+		this.input.clear();
+		this.chars.clear();
+		this.output.clear();
+		this.bytesRead = 0;
+		this.bytesWritten = 0;
+		this.malformed = 0;
+		this.unmappable = 0;
+	}
+
+	/**
+	 * Decode input bytes (read mode) in chars (write mode).
+	 */
+	private void decode(OutputStream out, boolean endOfInput)
+			throws IOException {
+		while (true) {
+			CoderResult result = this.decoder.decode(this.input, this.chars,
+					endOfInput);
+			if (result.isUnderflow()) {
+				return;
+			}
+			if (result.isOverflow()) {
+				this.encode(out, false);
+			} else {
+				// malformed input : replaced
+				this.input.position(this.input.position() + result.length());
+				this.malformed++;
+				String replacement = this.decoder.replacement();
+				if (this.chars.remaining() < replacement.length()) {
+					this.encode(out, false);
+				}
+				this.chars.put(replacement);
+			}
+		}
+	}
+
+	/**
+	 * Encode chars (write mode) in output bytes. Chars which can not be
+	 * encoded yet (high surrogate) are kept.
+	 */
+	private void encode(OutputStream out, boolean endOfInput)
+			throws IOException {
+		this.chars.flip();
+		while (true) {
+			CoderResult result = this.encoder.encode(this.chars, this.output,
+					endOfInput);
+			if (result.isUnderflow()) {
+				break;
+			}
+			if (result.isOverflow()) {
+				this.drain(out);
+			} else {
+				// unmappable character : replaced
+				this.chars.position(this.chars.position() + result.length());
+				this.unmappable++;
+				byte[] replacement = this.encoder.replacement();
+				if (this.output.remaining() < replacement.length) {
+					this.drain(out);
+				}
+				this.output.put(replacement);
+			}
+		}
+		this.chars.compact();
+	}
+
+	/**
+	 * Write output bytes.
+	 */
+	private void drain(OutputStream out) throws IOException {
+		out.write(this.output.array(), 0, this.output.position());
+		this.bytesWritten += this.output.position();
+		this.output.clear();
+	}
+
+}
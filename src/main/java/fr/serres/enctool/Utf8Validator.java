@@ -0,0 +1,279 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Check that a whole file is valid UTF-8 (RFC 3629 : no overlong form, no
+ * surrogate, nothing above U+10FFFF).
+ *
+ * Bytes are read through a large buffer and checked by a table-driven DFA.
+ * Runs of ASCII bytes are skipped 8 bytes at a time. Offsets of the first
+ * invalid sequences are kept.
+ *
+ * A validator is not thread-safe.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+class Utf8Validator {
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * High bit of 8 bytes.
+	 */
+	private static final long NON_ASCII_MASK = 0x8080808080808080L;
+
+	/**
+	 * Offsets of invalid sequences kept by a validation.
+	 */
+	static final int MAX_OFFSETS = 10;
+
+	/**
+	 * Number of byte classes, also the distance between two states in the
+	 * transition table.
+	 */
+	private static final int CLASSES = 12;
+
+	/**
+	 * No sequence started.
+	 */
+	private static final int ACCEPT = 0;
+
+	private static final int REJECT = 1 * CLASSES;
+
+	/**
+	 * Byte classes : 0 = ASCII, 1 = 80..8F, 9 = 90..9F, 7 = A0..BF, 2 = C2..DF,
+	 * 10 = E0, 3 = E1..EC and EE..EF, 4 = ED, 11 = F0, 6 = F1..F3, 5 = F4, 8 =
+	 * never valid (C0, C1, F5..FF).
+	 */
+	private static final byte[] BYTE_CLASSES = new byte[256];
+
+	static {
+		fill(0x80, 0x8F, 1);
+		fill(0x90, 0x9F, 9);
+		fill(0xA0, 0xBF, 7);
+		fill(0xC0, 0xC1, 8);
+		fill(0xC2, 0xDF, 2);
+		fill(0xE0, 0xE0, 10);
+		fill(0xE1, 0xEF, 3);
+		fill(0xED, 0xED, 4);
+		fill(0xF0, 0xF0, 11);
+		fill(0xF1, 0xF3, 6);
+		fill(0xF4, 0xF4, 5);
+		fill(0xF5, 0xFF, 8);
+	}
+
+	/**
+	 * Next state, at index state + byte class. States : 0 = accept, 12 =
+	 * reject, 24 = 1 continuation byte expected, 36 = 2, 84 = 3, and first
+	 * continuation byte restricted after E0 (48), ED (60), F0 (72) and F4
+	 * (96).
+	 */
+	private static final byte[] TRANSITIONS = {
+			// accept
+			0, 12, 24, 36, 60, 96, 84, 12, 12, 12, 48, 72,
+			// reject
+			12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12,
+			// 1 continuation byte
+			12, 0, 12, 12, 12, 12, 12, 0, 12, 0, 12, 12,
+			// 2 continuation bytes
+			12, 24, 12, 12, 12, 12, 12, 24, 12, 24, 12, 12,
+			// after E0 : A0..BF
+			12, 12, 12, 12, 12, 12, 12, 24, 12, 12, 12, 12,
+			// after ED : 80..9F
+			12, 24, 12, 12, 12, 12, 12, 12, 12, 24, 12, 12,
+			// after F0 : 90..BF
+			12, 12, 12, 12, 12, 12, 12, 36, 12, 36, 12, 12,
+			// 3 continuation bytes
+			12, 36, 12, 12, 12, 12, 12, 36, 12, 36, 12, 12,
+			// after F4 : 80..8F
+			12, 36, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12 };
+
+	private final ByteBuffer input = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * Result of the last validation.
+	 */
+	private long bytesRead;
+	private long invalid;
+	private final long[] offsets = new long[MAX_OFFSETS];
+
+	/**
+	 * DFA state and offset of the current sequence, between two buffers.
+	 */
+	private int state;
+	private long start;
+
+	/**
+	 * Check a whole file. Position of the channel is not used.
+	 *
+	 * Each buffer is first run through the DFA without any test but the ASCII
+	 * fast path : the reject state is never left, so the buffer is scanned
+	 * again, to locate invalid sequences, only if it ends in this state.
+	 *
+	 * @param in
+	 *            File.
+	 * @return True if the file is valid UTF-8.
+	 * @throws IOException
+	 *             In case of IO exception.
+	 */
+	boolean validate(FileChannel in) throws IOException {
+		this.bytesRead = 0;
+		this.invalid = 0;
+		this.state = ACCEPT;
+		this.start = 0;
+		this.input.clear();
+		int read;
+		while ((read = in.read(this.input, this.bytesRead)) != -1) {
+			int length = this.input.position();
+			int end = this.run(length);
+			if (end == REJECT) {
+				this.locate(length);
+			} else {
+				int lead = lastLead(length);
+				if (end != ACCEPT && lead >= 0) {
+					this.start = this.bytesRead + lead;
+				}
+				this.state = end;
+			}
+			this.bytesRead += read;
+			this.input.clear();
+		}
+		if (this.state != ACCEPT) {
+			// truncated sequence at the end of the file
+			this.addInvalid(this.start);
+		}
+		return this.invalid == 0;
+	}
+
+	/**
+	 * Run the DFA over the buffer.
+	 *
+	 * @return State at the end of the buffer.
+	 */
+	private int run(int length) {
+		byte[] bytes = this.input.array();
+		int s = this.state;
+		int i = 0;
+		while (i + 8 <= length) {
+			if (s == ACCEPT && (this.input.getLong(i) & NON_ASCII_MASK) == 0) {
+				// ASCII fast path
+				i += 8;
+				continue;
+			}
+			s = TRANSITIONS[s + BYTE_CLASSES[bytes[i] & 0xFF]];
+			s = TRANSITIONS[s + BYTE_CLASSES[bytes[i + 1] & 0xFF]];
+			s = TRANSITIONS[s + BYTE_CLASSES[bytes[i + 2] & 0xFF]];
+			s = TRANSITIONS[s + BYTE_CLASSES[bytes[i + 3] & 0xFF]];
+			s = TRANSITIONS[s + BYTE_CLASSES[bytes[i + 4] & 0xFF]];
+			s = TRANSITIONS[s + BYTE_CLASSES[bytes[i + 5] & 0xFF]];
+			s = TRANSITIONS[s + BYTE_CLASSES[bytes[i + 6] & 0xFF]];
+			s = TRANSITIONS[s + BYTE_CLASSES[bytes[i + 7] & 0xFF]];
+			i += 8;
+		}
+		for (; i < length; i++) {
+			s = TRANSITIONS[s + BYTE_CLASSES[bytes[i] & 0xFF]];
+		}
+		return s;
+	}
+
+	/**
+	 * Run the DFA over the buffer again, byte by byte, to keep offsets of
+	 * invalid sequences. After an invalid sequence, the DFA restarts at the
+	 * byte which ended it, unless it is the first byte.
+	 */
+	private void locate(int length) {
+		byte[] bytes = this.input.array();
+		int s = this.state;
+		for (int i = 0; i < length; i++) {
+			if (s == ACCEPT) {
+				this.start = this.bytesRead + i;
+			}
+			int next = TRANSITIONS[s + BYTE_CLASSES[bytes[i] & 0xFF]];
+			if (next == REJECT) {
+				this.addInvalid(this.start);
+				if (s != ACCEPT) {
+					// the byte may start the next sequence
+					i--;
+				}
+				next = ACCEPT;
+			}
+			s = next;
+		}
+		this.state = s;
+	}
+
+	/**
+	 * @return Position of the last first byte of a sequence in the buffer, or
+	 *         -1 if the buffer contains only continuation bytes.
+	 */
+	private int lastLead(int length) {
+		byte[] bytes = this.input.array();
+		int i = length - 1;
+		while (i >= 0 && (bytes[i] & 0xC0) == 0x80) {
+			i--;
+		}
+		return i;
+	}
+
+	/**
+	 * @return Bytes read by the last validation.
+	 */
+	long getBytesRead() {
+		return this.bytesRead;
+	}
+
+	/**
+	 * @return Invalid sequences found by the last validation.
+	 */
+	long getInvalid() {
+		return this.invalid;
+	}
+
+	/**
+	 * @return Offsets of the first invalid sequences found by the last
+	 *         validation (at most MAX_OFFSETS).
+	 */
+	long[] getOffsets() {
+		return Arrays.copyOf(this.offsets,
+				(int) Math.min(this.invalid, MAX_OFFSETS));
+	}
+
+	private void addInvalid(long offset) {
+		if (this.invalid < MAX_OFFSETS) {
+			this.offsets[(int) this.invalid] = offset;
+		}
+		this.invalid++;
+	}
+
+	private static void fill(int from, int to, int byteClass) {
+		for (int b = from; b <= to; b++) {
+			BYTE_CLASSES[b] = (byte) byteClass;
+		}
+	}
+
+}
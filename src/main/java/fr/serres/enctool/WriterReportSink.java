@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+
+/**
+ * Report sink writing one line per report ("path : report") in a writer. The
+ * writer is flushed at least every FLUSH_INTERVAL milliseconds while reports
+ * are written ; recursive functions also flush the sink before waiting for a
+ * slow file or directory, so reports appear while the scan is running.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class WriterReportSink implements ReportSink {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Max delay (ms) before a report is flushed.
+	 */
+	private static final long FLUSH_INTERVAL = 200;
+
+	private final Writer out;
+
+	private long lastFlush = System.currentTimeMillis();
+
+	/**
+	 * Sink writing to an output stream (System.out for example), with the
+	 * platform encoding.
+	 *
+	 * @param out
+	 *            Output stream.
+	 */
+	public WriterReportSink(OutputStream out) {
+		this(Channels.newWriter(Channels.newChannel(out), Charset
+				.defaultCharset().newEncoder(), BUFFER_SIZE));
+	}
+
+	/**
+	 * Sink writing to a writer.
+	 *
+	 * @param out
+	 *            Writer (buffered by the caller if needed).
+	 */
+	public WriterReportSink(Writer out) {
+		this.out = out;
+	}
+
+	public void report(String path, String report) throws IOException {
+		this.out.write(path);
+		this.out.write(" : ");
+		this.out.write(report);
+		this.out.write('\n');
+		this.flushIfLate();
+	}
+
+	public void message(String message) throws IOException {
+		this.out.write(message);
+		this.out.write('\n');
+		this.flushIfLate();
+	}
+
+	public void flush() throws IOException {
+		this.out.flush();
+		this.lastFlush = System.currentTimeMillis();
+	}
+
+	private void flushIfLate() throws IOException {
+		if (System.currentTimeMillis() - this.lastFlush >= FLUSH_INTERVAL) {
+			this.flush();
+		}
+	}
+
+}
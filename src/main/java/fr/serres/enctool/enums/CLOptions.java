@@ -34,12 +34,24 @@ public enum CLOptions {
 	DISPLAY_ONLY_FILES_WITH_DIFFERENT_ENCODING("-d"), //
 	CONVERT_FILE("-c"), //
 	CONVERT_FILES_DIR("-cr"), //
+	VALIDATE("-validate"), //
 	FORCE_INPUT_ENCODING("-f"),//
 	CHANGE_OUTPUT_LOCATION("-o"),//
 	ADD_BOM("-bom"),//
 	NO_BOM("-nobom"),//
 	PATTERN_FILENAME("-p"), //
 	ALL_CONFIDENCES("-a"), //
+	THREADS("-j"), //
+	CACHE("-cache"), //
+	XATTR("-xattr"), //
+	SAMPLE_SIZE("-s"), //
+	SAMPLE_WINDOWS("-sw"), //
+	SAMPLE_PROGRESSIVE("-sp"), //
+	CANDIDATES("-candidates"), //
+	RULES("-rules"), //
+	INCLUDE("-include"), //
+	EXCLUDE("-exclude"), //
+	GITIGNORE("-gitignore"), //
 	SUPPORTED_ENCODINGS("-se"), //
 	VERSION("-v"), //
 	UNDEFINED("");
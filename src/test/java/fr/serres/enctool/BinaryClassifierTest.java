@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Binary files and Unicode texts seen by BinaryClassifier.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class BinaryClassifierTest extends TestCase {
+
+	/**
+	 * Bytes classified by the engine.
+	 */
+	private static final int HEAD_SIZE = 512;
+
+	private static final String LATIN = "Portez ce vieux whisky au juge "
+			+ "blond qui fume sur son île intérieure.\n";
+
+	private static final String CYRILLIC = "Съешь же ещё этих мягких "
+			+ "французских булок, да выпей чаю.\n";
+
+	private static final String GREEK = "Ξεσκεπάζω την ψυχοφθόρα "
+			+ "βδελυγμία.\n";
+
+	private static final String CJK = "我能吞下玻璃而不伤身体。天地玄黄，宇宙洪荒。\n";
+
+	private static final String KOREAN = "키스의 고유조건은 입술끼리 만나야 "
+			+ "하고 특별한 기술은 필요치 않다.\n";
+
+	private static final String[] TEXTS = { LATIN, CYRILLIC, GREEK, CJK };
+
+	public void testMagicNumbers() {
+		assertEquals("PNG image", classify(new byte[] { (byte) 0x89, 'P',
+				'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A, 0 }));
+		assertEquals("ZIP archive", classify(new byte[] { 'P', 'K', 3, 4 }));
+		assertEquals("PDF document", classify("%PDF-1.4\n".getBytes()));
+		// too short to hold the magic number
+		assertNull(classify("PK".getBytes()));
+	}
+
+	public void testRandomData() {
+		Random random = new Random(42);
+		byte[] data = new byte[HEAD_SIZE];
+		for (int i = 0; i < 1000; i++) {
+			random.nextBytes(data);
+			assertEquals(BinaryClassifier.DATA, classify(data));
+		}
+	}
+
+	public void testSpreadNuls() {
+		byte[] data = new byte[HEAD_SIZE];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 5 == 0 ? 0 : 'a');
+		}
+		assertEquals(BinaryClassifier.DATA, classify(data));
+	}
+
+	public void testTexts() {
+		for (String text : TEXTS) {
+			for (String encoding : new String[] { "UTF-8", "UTF-16LE",
+					"UTF-16BE", "UTF-32LE", "UTF-32BE" }) {
+				assertNull(encoding + " " + text,
+						classify(encode(text, encoding, null)));
+			}
+		}
+		assertNull(classify(encode(LATIN, "ISO-8859-1", null)));
+		assertNull(classify(encode(CYRILLIC, "KOI8-R", null)));
+	}
+
+	public void testUnicodeTextsWithBom() {
+		byte[][] boms = { { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF },
+				{ (byte) 0xFF, (byte) 0xFE }, { (byte) 0xFE, (byte) 0xFF },
+				{ (byte) 0xFF, (byte) 0xFE, 0, 0 },
+				{ 0, 0, (byte) 0xFE, (byte) 0xFF } };
+		String[] encodings = { "UTF-8", "UTF-16LE", "UTF-16BE", "UTF-32LE",
+				"UTF-32BE" };
+		for (String text : TEXTS) {
+			for (int i = 0; i < boms.length; i++) {
+				assertNull(encodings[i] + " " + text,
+						classify(encode(text, encodings[i], boms[i])));
+			}
+		}
+	}
+
+	public void testControlBytes() {
+		// odd step : control bytes at all positions modulo 4
+		byte[] data = encode(LATIN, "ISO-8859-1", null);
+		for (int i = 0; i < data.length; i += 7) {
+			data[i] = 0x01;
+		}
+		assertEquals(BinaryClassifier.DATA, classify(data));
+		// tabs, form feeds, escapes (terminal colors) are text
+		data = encode(LATIN, "ISO-8859-1", null);
+		for (int i = 0; i < data.length; i += 10) {
+			data[i] = (byte) (i % 20 == 0 ? 0x1B : 0x0C);
+		}
+		assertNull(classify(data));
+	}
+
+	public void testIso2022Kr() {
+		byte[] data = iso2022Kr(KOREAN);
+		assertEquals(0x0E, data[4]);
+		assertNull(classify(data));
+		// SO and SI are control bytes without the ESC $ ) C header
+		data[2] = '(';
+		assertEquals(BinaryClassifier.DATA, classify(data));
+	}
+
+	/**
+	 * Classify the first bytes, as the engine does.
+	 */
+	private static String classify(byte[] data) {
+		return BinaryClassifier.classify(data,
+				Math.min(HEAD_SIZE, data.length));
+	}
+
+	/**
+	 * @return The text repeated up to HEAD_SIZE bytes in ISO-2022-KR : ESC $
+	 *         ) C header, then SO and SI around each run of Hangul (the JDK
+	 *         only decodes this encoding).
+	 */
+	private static byte[] iso2022Kr(String text) {
+		byte[] euc = encode(text, "EUC-KR", null);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0x1B);
+		out.write('$');
+		out.write(')');
+		out.write('C');
+		boolean shifted = false;
+		for (int i = 0; i < euc.length && out.size() < HEAD_SIZE; i++) {
+			boolean wide = euc[i] < 0;
+			if (wide != shifted) {
+				out.write(wide ? 0x0E : 0x0F);
+				shifted = wide;
+			}
+			out.write(euc[i] & 0x7F);
+		}
+		return Arrays.copyOf(out.toByteArray(), HEAD_SIZE);
+	}
+
+	/**
+	 * @return The text repeated up to HEAD_SIZE bytes, after the BOM.
+	 */
+	private static byte[] encode(String text, String encoding, byte[] bom) {
+		StringBuilder repeated = new StringBuilder();
+		while (repeated.length() < HEAD_SIZE) {
+			repeated.append(text);
+		}
+		byte[] bytes = repeated.toString().getBytes(Charset.forName(encoding));
+		int offset = bom != null ? bom.length : 0;
+		byte[] data = new byte[Math.min(HEAD_SIZE, offset + bytes.length)];
+		if (bom != null) {
+			System.arraycopy(bom, 0, data, 0, bom.length);
+		}
+		System.arraycopy(bytes, 0, data, offset, data.length - offset);
+		return data;
+	}
+
+}
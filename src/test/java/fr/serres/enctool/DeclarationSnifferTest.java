@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+/**
+ * Declared encodings found by DeclarationSniffer, and their checks.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class DeclarationSnifferTest extends TestCase {
+
+	private final DeclarationSniffer sniffer = new DeclarationSniffer();
+
+	public void testBoms() {
+		assertEquals("UTF-8", this.sniff(bytes(0xEF, 0xBB, 0xBF, 'a')));
+		assertEquals("UTF-16LE", this.sniff(bytes(0xFF, 0xFE, 'a', 0)));
+		assertEquals("UTF-16BE", this.sniff(bytes(0xFE, 0xFF, 0, 'a')));
+		assertEquals("UTF-32LE",
+				this.sniff(bytes(0xFF, 0xFE, 0, 0, 'a', 0, 0, 0)));
+		assertEquals("UTF-32BE",
+				this.sniff(bytes(0, 0, 0xFE, 0xFF, 0, 0, 0, 'a')));
+		// invalid UTF-8 after the BOM
+		assertNull(this.sniff(bytes(0xEF, 0xBB, 0xBF, 0xC3, 'a')));
+	}
+
+	public void testXmlDeclaration() {
+		assertEquals("ISO-8859-1", this.sniff(encode(
+				"<?xml version=\"1.0\" encoding='latin1'?><a>é</a>",
+				"ISO-8859-1")));
+		assertEquals("Shift_JIS", this.sniff(encode(
+				"<?xml version=\"1.0\" encoding=\"Shift_JIS\"?><a>日</a>",
+				"Shift_JIS")));
+		// the declaration must start the file
+		assertNull(this.sniff(encode(
+				"<a/><?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>",
+				"ISO-8859-1")));
+	}
+
+	public void testCssCharset() {
+		assertEquals("windows-1252", this.sniff(encode(
+				"@charset \"windows-1252\";\na:after { content: \"€\" }",
+				"windows-1252")));
+	}
+
+	public void testMetaCharset() {
+		assertEquals("windows-1252", this.sniff(encode(
+				"<html><head><meta http-equiv=\"Content-Type\" "
+						+ "content=\"text/html; charset=windows-1252\">"
+						+ "</head><body>été</body></html>",
+				"windows-1252")));
+		assertEquals("UTF-8", this.sniff(encode(
+				"<!DOCTYPE html><META CHARSET=utf-8><p>é</p>", "UTF-8")));
+	}
+
+	public void testCodingCookies() {
+		assertEquals("ISO-8859-15", this.sniff(encode(
+				"#!/usr/bin/python\n# -*- coding: latin-9 -*-\ns = '€'\n",
+				"ISO-8859-15")));
+		assertEquals("UTF-8", this.sniff(encode(
+				";; -*- mode: lisp; coding: utf-8-unix -*-\n(é)\n",
+				"UTF-8")));
+		assertEquals("ISO-8859-1", this.sniff(encode(
+				"# vim: set fileencoding=latin1 :\né\n", "ISO-8859-1")));
+		// only the first two lines
+		assertNull(this.sniff(encode("a\nb\n# coding: latin1\né\n",
+				"ISO-8859-1")));
+	}
+
+	public void testUnknownLabel() {
+		assertNull(this.sniff(encode(
+				"<?xml version=\"1.0\" encoding=\"no-such-charset\"?><a/>",
+				"US-ASCII")));
+	}
+
+	public void testNotAsciiCompatible() {
+		// the declaration can not be read in UTF-16 without BOM
+		assertNull(this.sniff(encode(
+				"<?xml version=\"1.0\" encoding=\"UTF-16\"?><a/>", "US-ASCII")));
+	}
+
+	public void testUtf8DeclaredAsLegacy() {
+		// a common mistake : the declaration was not updated
+		assertNull(this.sniff(encode(
+				"<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a>é</a>",
+				"UTF-8")));
+	}
+
+	public void testSampleNotDecoded() {
+		// 0x81 is not mapped in windows-1252
+		byte[] sample = encode(
+				"<?xml version=\"1.0\" encoding=\"windows-1252\"?><a>xx</a>",
+				"US-ASCII");
+		sample[sample.length - 6] = (byte) 0x81;
+		assertNull(this.sniff(sample));
+		// invalid UTF-8
+		sample = encode("<?xml version=\"1.0\" encoding=\"UTF-8\"?><a>x</a>",
+				"US-ASCII");
+		sample[sample.length - 5] = (byte) 0xE9;
+		assertNull(this.sniff(sample));
+	}
+
+	public void testSequenceCutAtTheEnd() {
+		byte[] full = encode(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?><a>€", "UTF-8");
+		// the sample ends in the middle of the euro sign
+		assertEquals("UTF-8", this.sniffer.sniff(full, full.length - 1));
+	}
+
+	public void testNoDeclaration() {
+		assertNull(this.sniff(encode("plain text é", "ISO-8859-1")));
+		assertNull(this.sniff(new byte[0]));
+	}
+
+	private String sniff(byte[] sample) {
+		return this.sniffer.sniff(sample, sample.length);
+	}
+
+	private static byte[] encode(String text, String encoding) {
+		return text.getBytes(Charset.forName(encoding));
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Storage, staleness, growth and reload of DetectionCache.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class DetectionCacheTest extends TestCase {
+
+	private Path dir;
+
+	private String file;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("enctool-cache");
+		this.file = this.dir.resolve("enctool.idx").toString();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		TestFiles.delete(this.dir);
+	}
+
+	public void testPutGet() throws IOException {
+		DetectionCache cache = new DetectionCache(this.file);
+		try {
+			cache.put("/a/b.txt", new Attributes(10, 1000, 7), new Detection(
+					new String[] { "UTF-8", "ISO-8859-1", "windows-1252",
+							"Big5" }, new int[] { 80, 40, 30, 10 },
+					new String[] { null, "fr", "fr", "zh" }, true));
+			Detection detection = cache.get("/a/b.txt", new Attributes(10,
+					1000, 7));
+			// only the best matches are kept
+			assertEquals(DetectionCache.MAX_MATCHES, detection.size());
+			assertTrue(Arrays.equals(new String[] { "UTF-8", "ISO-8859-1",
+					"windows-1252" }, detection.names));
+			assertTrue(Arrays.equals(new int[] { 80, 40, 30 },
+					detection.confidences));
+			assertTrue(Arrays.equals(new String[] { null, "fr", "fr" },
+					detection.languages));
+			assertTrue(detection.bom);
+			assertNull(cache.get("/a/c.txt", new Attributes(10, 1000, 7)));
+		} finally {
+			cache.close();
+		}
+	}
+
+	public void testStaleEntries() throws IOException {
+		DetectionCache cache = new DetectionCache(this.file);
+		try {
+			cache.put("/a.txt", new Attributes(10, 1000, 7), utf8());
+			assertNotNull(cache.get("/a.txt", new Attributes(10, 1000, 7)));
+			assertNull(cache.get("/a.txt", new Attributes(11, 1000, 7)));
+			assertNull(cache.get("/a.txt", new Attributes(10, 2000, 7)));
+			// file replaced (other inode)
+			assertNull(cache.get("/a.txt", new Attributes(10, 1000, 8)));
+
+			// updated in place
+			cache.put("/a.txt", new Attributes(11, 2000, 7), new Detection(
+					new String[] { "Shift_JIS" }, new int[] { 90 },
+					new String[] { "ja" }, false));
+			Detection detection = cache.get("/a.txt", new Attributes(11,
+					2000, 7));
+			assertEquals("Shift_JIS", detection.getName());
+			assertFalse(detection.bom);
+		} finally {
+			cache.close();
+		}
+	}
+
+	public void testGrowAndReload() throws IOException {
+		int files = 10000;
+		DetectionCache cache = new DetectionCache(this.file);
+		long initialSize = Files.size(this.dir.resolve("enctool.idx"));
+		try {
+			for (int i = 0; i < files; i++) {
+				cache.put("/dir/file" + i, new Attributes(i, i, i), utf8());
+			}
+			for (int i = 0; i < files; i++) {
+				assertNotNull(cache.get("/dir/file" + i, new Attributes(i, i,
+						i)));
+			}
+		} finally {
+			cache.close();
+		}
+		assertTrue(Files.size(this.dir.resolve("enctool.idx")) > initialSize);
+		assertFalse(Files.exists(this.dir.resolve("enctool.idx.tmp")));
+
+		cache = new DetectionCache(this.file);
+		try {
+			for (int i = 0; i < files; i++) {
+				Detection detection = cache.get("/dir/file" + i,
+						new Attributes(i, i, i));
+				assertEquals("UTF-8", detection.getName());
+			}
+			assertNull(cache.get("/dir/file" + files, new Attributes(files,
+					files, files)));
+		} finally {
+			cache.close();
+		}
+	}
+
+	public void testNotAnIndex() throws IOException {
+		Files.write(this.dir.resolve("enctool.idx"), new byte[8192]);
+		try {
+			new DetectionCache(this.file);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("is not an enctool cache"));
+		}
+		// the lock is released : another index can be opened
+		Files.delete(this.dir.resolve("enctool.idx"));
+		new DetectionCache(this.file).close();
+	}
+
+	private static Detection utf8() {
+		return new Detection(new String[] { "UTF-8" }, new int[] { 100 },
+				new String[] { null }, false);
+	}
+
+	/**
+	 * Attributes of a file which does not exist.
+	 */
+	private static final class Attributes implements BasicFileAttributes {
+
+		private final long size;
+
+		private final long mtime;
+
+		private final Long fileKey;
+
+		Attributes(long size, long mtime, long fileKey) {
+			this.size = size;
+			this.mtime = mtime;
+			this.fileKey = fileKey;
+		}
+
+		public FileTime lastModifiedTime() {
+			return FileTime.fromMillis(this.mtime);
+		}
+
+		public FileTime lastAccessTime() {
+			return this.lastModifiedTime();
+		}
+
+		public FileTime creationTime() {
+			return this.lastModifiedTime();
+		}
+
+		public boolean isRegularFile() {
+			return true;
+		}
+
+		public boolean isDirectory() {
+			return false;
+		}
+
+		public boolean isSymbolicLink() {
+			return false;
+		}
+
+		public boolean isOther() {
+			return false;
+		}
+
+		public long size() {
+			return this.size;
+		}
+
+		public Object fileKey() {
+			return this.fileKey;
+		}
+	}
+
+}
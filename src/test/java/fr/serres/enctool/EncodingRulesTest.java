@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import junit.framework.TestCase;
+
+/**
+ * Parsing and matching of rules files.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class EncodingRulesTest extends TestCase {
+
+	private Path dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("enctool-rules");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		TestFiles.delete(this.dir);
+	}
+
+	public void testEncodingAndCheck() throws IOException {
+		EncodingRules rules = this.rules("# comment\n\n"
+				+ "*.properties  ISO-8859-1\n" + "*.json utf-8 CHECK\n");
+		EncodingRules.Rule rule = rules.find(Paths.get("a/b.properties"));
+		assertEquals("ISO-8859-1", rule.encoding);
+		assertFalse(rule.check);
+		assertFalse(rule.isSkip());
+		rule = rules.find(Paths.get("c.json"));
+		// canonical name
+		assertEquals("UTF-8", rule.encoding);
+		assertTrue(rule.check);
+		assertNull(rules.find(Paths.get("c.txt")));
+	}
+
+	public void testSkip() throws IOException {
+		EncodingRules rules = this.rules("build/** skip\n");
+		assertTrue(rules.find(Paths.get("build/a/b.txt")).isSkip());
+		assertNull(rules.find(Paths.get("src/build/b.txt")));
+	}
+
+	public void testFirstRuleWins() throws IOException {
+		EncodingRules rules = this.rules("data/*.csv Shift_JIS\n"
+				+ "*.csv UTF-8\n");
+		assertEquals("Shift_JIS",
+				rules.find(Paths.get("data/a.csv")).encoding);
+		assertEquals("UTF-8", rules.find(Paths.get("b.csv")).encoding);
+		// a glob with "/" matches the relative path, not the name
+		assertEquals("UTF-8", rules.find(Paths.get("x/data/a.csv")).encoding);
+	}
+
+	public void testSyntaxPrefixes() throws IOException {
+		EncodingRules rules = this.rules("glob:*.txt windows-1252\n"
+				+ "regex:.*\\.(sql|ddl) UTF-8\n");
+		assertEquals("windows-1252", rules.find(Paths.get("a.txt")).encoding);
+		// prefixed globs match the whole relative path
+		assertNull(rules.find(Paths.get("sub/a.txt")));
+		assertEquals("UTF-8", rules.find(Paths.get("sub/b.ddl")).encoding);
+	}
+
+	public void testInvalidLines() throws IOException {
+		this.assertInvalid("*.txt\n", 1);
+		this.assertInvalid("# comment\n*.txt NOT-AN-ENCODING\n", 2);
+		this.assertInvalid("*.txt UTF-8 maybe\n", 1);
+		this.assertInvalid("*.txt skip check\n", 1);
+		this.assertInvalid("\n\nregex:( UTF-8\n", 3);
+		this.assertInvalid("*.txt UTF-8 check extra\n", 1);
+	}
+
+	private void assertInvalid(String content, int line) throws IOException {
+		try {
+			this.rules(content);
+			fail(content);
+		} catch (IOException e) {
+			assertTrue(e.getMessage(),
+					e.getMessage().contains("invalid rule at line " + line));
+		}
+	}
+
+	private EncodingRules rules(String content) throws IOException {
+		Path file = this.dir.resolve("enctool.rules");
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+		return new EncodingRules(file.toString());
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * File conversions of Engine.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class EngineTest extends TestCase {
+
+	private static final byte[] BOM = { (byte) 0xEF, (byte) 0xBB,
+			(byte) 0xBF };
+
+	private final Engine engine = new Engine();
+
+	private Path dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("enctool-engine");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		TestFiles.delete(this.dir);
+	}
+
+	public void testLegacyToUtf8WithBom() throws IOException {
+		// ASCII content is copied, other content is transcoded
+		for (String text : new String[] { "plain text\n", "été\n" }) {
+			Path file = this.write(text, "ISO-8859-1");
+			String result = this.engine.convertEncoding(file.toString(),
+					"UTF-8", null, "ISO-8859-1", Boolean.TRUE);
+			assertEquals("Successful encoded from ISO-8859-1 to UTF-8 "
+					+ "(with BOM)", result);
+			assertTrue(text, Arrays.equals(concat(BOM, encode(text, "UTF-8")),
+					Files.readAllBytes(file)));
+		}
+	}
+
+	public void testLegacyToUtf8WithoutBom() throws IOException {
+		// ASCII content is left untouched
+		Path file = this.write("plain text\n", "ISO-8859-1");
+		assertEquals("Already in target : UTF-8 (without BOM)",
+				this.engine.convertEncoding(file.toString(), "UTF-8", null,
+						"ISO-8859-1", Boolean.FALSE));
+		assertTrue(Arrays.equals(encode("plain text\n", "UTF-8"),
+				Files.readAllBytes(file)));
+
+		file = this.write("été\n", "ISO-8859-1");
+		assertEquals("Successful encoded from ISO-8859-1 to UTF-8 "
+				+ "(without BOM)", this.engine.convertEncoding(
+				file.toString(), "UTF-8", null, "ISO-8859-1", Boolean.FALSE));
+		assertTrue(Arrays.equals(encode("été\n", "UTF-8"),
+				Files.readAllBytes(file)));
+	}
+
+	public void testUtf8BomAddedAndRemoved() throws IOException {
+		Path file = this.write("été\n", "UTF-8");
+		this.engine.convertEncoding(file.toString(), "UTF-8", null, "UTF-8",
+				Boolean.TRUE);
+		assertTrue(Arrays.equals(concat(BOM, encode("été\n", "UTF-8")),
+				Files.readAllBytes(file)));
+		this.engine.convertEncoding(file.toString(), "UTF-8", null, "UTF-8",
+				Boolean.FALSE);
+		assertTrue(Arrays.equals(encode("été\n", "UTF-8"),
+				Files.readAllBytes(file)));
+	}
+
+	private Path write(String text, String encoding) throws IOException {
+		Path file = this.dir.resolve("file.txt");
+		Files.write(file, encode(text, encoding));
+		return file;
+	}
+
+	private static byte[] encode(String text, String encoding) {
+		return text.getBytes(Charset.forName(encoding));
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] bytes = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, bytes, a.length, b.length);
+		return bytes;
+	}
+
+}
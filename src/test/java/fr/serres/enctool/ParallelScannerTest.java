@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Reports of ParallelScanner, compared with the sequential scan.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class ParallelScannerTest extends TestCase {
+
+	private static final String[] TEXTS = {
+			"Portez ce vieux whisky au juge blond qui fume.\n",
+			"Съешь же ещё этих мягких французских булок.\n",
+			"我能吞下玻璃而不伤身体。\n" };
+
+	private static final String[] ENCODINGS = { "UTF-8", "ISO-8859-1",
+			"KOI8-R", "Big5" };
+
+	private Path dir;
+
+	private Path unreadable;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("enctool-scan");
+		// more files than the reorder buffer of 4 threads holds
+		for (int i = 0; i < 4; i++) {
+			Path sub = Files.createDirectory(this.dir.resolve("dir" + i));
+			for (int j = 0; j < 3; j++) {
+				Path subSub = Files.createDirectory(sub.resolve("sub" + j));
+				for (int k = 0; k < 8; k++) {
+					this.write(subSub.resolve("file" + k + ".txt"), i + j + k);
+				}
+			}
+			this.write(sub.resolve("file.txt"), i);
+		}
+		this.write(this.dir.resolve("file.txt"), 0);
+		// symbolic link to a parent
+		Files.createSymbolicLink(this.dir.resolve("dir1/sub2/loop"),
+				this.dir.resolve("dir1"));
+		this.unreadable = Files.createDirectory(this.dir
+				.resolve("dir2/unreadable"));
+		this.write(this.unreadable.resolve("file.txt"), 1);
+		Files.setPosixFilePermissions(this.unreadable,
+				EnumSet.noneOf(PosixFilePermission.class));
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		Files.setPosixFilePermissions(this.unreadable,
+				EnumSet.allOf(PosixFilePermission.class));
+		TestFiles.delete(this.dir);
+	}
+
+	public void testSameReportsAsSequentialScan() throws IOException {
+		List<String> sequential = this.scan(1);
+		List<String> parallel = this.scan(4);
+		assertEquals(sequential, parallel);
+		assertEquals(sequential, this.scan(2));
+
+		String loop = this.dir.toAbsolutePath().resolve("dir1/sub2/loop")
+				+ " : ERROR => File system loop.";
+		assertTrue(parallel.contains(loop));
+		if (!Files.isReadable(this.unreadable)) {
+			// not when run by root
+			assertTrue(parallel.contains(this.unreadable.toAbsolutePath()
+					+ " : ERROR => Can not read directory."));
+		}
+	}
+
+	public void testNotADirectory() throws IOException {
+		Path file = this.dir.resolve("file.txt");
+		Reports reports = new Reports();
+		new Engine().detectEncodingRecursive(file.toString(), false, false,
+				null, null, 4, reports);
+		assertEquals(1, reports.lines.size());
+		assertEquals(file + " : ERROR => It's not a directory.",
+				reports.lines.get(0));
+	}
+
+	private List<String> scan(int threads) throws IOException {
+		Reports reports = new Reports();
+		new Engine().detectEncodingRecursive(this.dir.toString(), true,
+				false, null, null, threads, reports);
+		assertTrue(reports.lines.size() > 100);
+		return reports.lines;
+	}
+
+	private void write(Path file, int n) throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			String line = TEXTS[(n + i) % TEXTS.length];
+			text.append(line.substring(0, 10 + n % 4));
+			text.append('\n');
+		}
+		String encoding = ENCODINGS[n % ENCODINGS.length];
+		Files.write(file, text.toString().getBytes(Charset.forName(encoding)));
+	}
+
+	/**
+	 * Reports in a list.
+	 */
+	private static final class Reports implements ReportSink {
+
+		private final List<String> lines = new ArrayList<String>();
+
+		public void report(String path, String report) {
+			this.lines.add(Paths.get(path).toAbsolutePath() + " : " + report);
+		}
+
+		public void message(String message) {
+			this.lines.add(message);
+		}
+
+		public void flush() {
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Include and exclude globs, and gitignore rules of PathFilter.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class PathFilterTest extends TestCase {
+
+	private static final List<String> NONE = Collections.emptyList();
+
+	private Path root;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.root = Files.createTempDirectory("enctool-filter").toRealPath();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		TestFiles.delete(this.root);
+	}
+
+	public void testExcludeName() {
+		PathFilter filter = new PathFilter(NONE,
+				Arrays.asList("node_modules"), false);
+		assertFalse(this.accepts(filter, null, "node_modules", true));
+		assertFalse(this.accepts(filter, null, "a/node_modules", true));
+		assertTrue(this.accepts(filter, null, "a/b.js", false));
+	}
+
+	public void testExcludePath() {
+		PathFilter filter = new PathFilter(NONE, Arrays.asList("docs/**"),
+				false);
+		// the directory itself is pruned, not only its content
+		assertFalse(this.accepts(filter, null, "docs", true));
+		assertFalse(this.accepts(filter, null, "docs/a.md", false));
+		assertTrue(this.accepts(filter, null, "src/docs", true));
+	}
+
+	public void testIncludePrunesByPrefix() {
+		PathFilter filter = new PathFilter(Arrays.asList("src/main/**"),
+				NONE, false);
+		assertTrue(this.accepts(filter, null, "src", true));
+		assertTrue(this.accepts(filter, null, "src/main/java", true));
+		assertFalse(this.accepts(filter, null, "src/test", true));
+		assertFalse(this.accepts(filter, null, "lib", true));
+		assertTrue(this.accepts(filter, null, "src/main/A.java", false));
+		assertFalse(this.accepts(filter, null, "README", false));
+	}
+
+	public void testIncludeName() {
+		PathFilter filter = new PathFilter(Arrays.asList("*.java"), NONE,
+				false);
+		// any directory may hold a matching file
+		assertTrue(this.accepts(filter, null, "lib", true));
+		assertTrue(this.accepts(filter, null, "lib/A.java", false));
+		assertFalse(this.accepts(filter, null, "lib/a.txt", false));
+	}
+
+	public void testInvalidGlob() {
+		try {
+			new PathFilter(Arrays.asList("a["), NONE, false);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	public void testNoIgnoreFile() throws IOException {
+		this.write(".gitignore", "*.log");
+		PathFilter filter = new PathFilter(NONE, NONE, false);
+		assertNull(filter.enter(null, this.root));
+		assertTrue(this.accepts(filter, null, "a.log", false));
+		assertTrue(this.accepts(filter, null, ".git", true));
+	}
+
+	public void testGitDirectory() {
+		PathFilter filter = new PathFilter(NONE, NONE, true);
+		PathFilter.Scope scope = filter.enter(null, this.root);
+		assertFalse(this.accepts(filter, scope, ".git", true));
+		assertTrue(this.accepts(filter, scope, ".gitignore", false));
+	}
+
+	public void testNegation() throws IOException {
+		this.write(".gitignore", "*.log\n!important.log\n");
+		PathFilter filter = new PathFilter(NONE, NONE, true);
+		PathFilter.Scope scope = filter.enter(null, this.root);
+		assertFalse(this.accepts(filter, scope, "a.log", false));
+		assertFalse(this.accepts(filter, scope, "logs/a.log", false));
+		assertTrue(this.accepts(filter, scope, "important.log", false));
+	}
+
+	public void testDirectoryOnly() throws IOException {
+		this.write(".gitignore", "target/\n");
+		PathFilter filter = new PathFilter(NONE, NONE, true);
+		PathFilter.Scope scope = filter.enter(null, this.root);
+		assertFalse(this.accepts(filter, scope, "target", true));
+		assertFalse(this.accepts(filter, scope, "a/target", true));
+		assertTrue(this.accepts(filter, scope, "target", false));
+	}
+
+	public void testAnchored() throws IOException {
+		this.write(".gitignore", "/build/*\n!/build/keep/\n");
+		PathFilter filter = new PathFilter(NONE, NONE, true);
+		PathFilter.Scope scope = filter.enter(null, this.root);
+		assertTrue(this.accepts(filter, scope, "build", true));
+		assertFalse(this.accepts(filter, scope, "build/a.txt", false));
+		assertTrue(this.accepts(filter, scope, "build/keep", true));
+		assertTrue(this.accepts(filter, scope, "src/build/a.txt", false));
+	}
+
+	public void testDoubleStar() throws IOException {
+		this.write(".gitignore", "**/tmp/*.bak\nlogs/**\n");
+		PathFilter filter = new PathFilter(NONE, NONE, true);
+		PathFilter.Scope scope = filter.enter(null, this.root);
+		assertFalse(this.accepts(filter, scope, "tmp/a.bak", false));
+		assertFalse(this.accepts(filter, scope, "a/b/tmp/c.bak", false));
+		// "*" does not match "/"
+		assertTrue(this.accepts(filter, scope, "tmp/sub/d.bak", false));
+		assertFalse(this.accepts(filter, scope, "logs/x/y.txt", false));
+		assertTrue(this.accepts(filter, scope, "logs", true));
+	}
+
+	public void testCommentsAndEscapes() throws IOException {
+		this.write(".gitignore", "# comment\n\\#hash\n\\!bang\na?c\n");
+		PathFilter filter = new PathFilter(NONE, NONE, true);
+		PathFilter.Scope scope = filter.enter(null, this.root);
+		assertTrue(this.accepts(filter, scope, "# comment", false));
+		assertFalse(this.accepts(filter, scope, "#hash", false));
+		assertFalse(this.accepts(filter, scope, "!bang", false));
+		assertFalse(this.accepts(filter, scope, "abc", false));
+		assertTrue(this.accepts(filter, scope, "a/c", false));
+	}
+
+	public void testDeepestFileWins() throws IOException {
+		this.write(".gitignore", "*.log\nb.txt\n");
+		this.write("sub/.ignore", "!keep.log\n");
+		this.write("other/.gitignore", "c.txt\n");
+		PathFilter filter = new PathFilter(NONE, NONE, true);
+		PathFilter.Scope rootScope = filter.enter(null, this.root);
+		PathFilter.Scope sub = filter.enter(rootScope,
+				this.root.resolve("sub"));
+		PathFilter.Scope other = filter.enter(rootScope,
+				this.root.resolve("other"));
+		assertTrue(this.accepts(filter, sub, "sub/keep.log", false));
+		assertFalse(this.accepts(filter, sub, "sub/a.log", false));
+		assertFalse(this.accepts(filter, sub, "sub/b.txt", false));
+		assertFalse(this.accepts(filter, other, "other/c.txt", false));
+		// patterns of a directory do not apply to its siblings
+		assertTrue(this.accepts(filter, sub, "sub/c.txt", false));
+		assertFalse(this.accepts(filter, rootScope, "keep.log", false));
+	}
+
+	private boolean accepts(PathFilter filter, PathFilter.Scope scope,
+			String relative, boolean directory) {
+		return filter.accepts(scope, this.root, this.root.resolve(relative),
+				directory);
+	}
+
+	private void write(String relative, String content) throws IOException {
+		Path file = this.root.resolve(relative);
+		Files.createDirectories(file.getParent());
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Chunked conversions, copies and validation of Transcoder.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class TranscoderTest extends TestCase {
+
+	/**
+	 * Size of the transcoder buffers.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final byte[] BOM = { (byte) 0xEF, (byte) 0xBB,
+			(byte) 0xBF };
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final Transcoder transcoder = new Transcoder();
+
+	private Path dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.dir = Files.createTempDirectory("enctool-transcoder");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		TestFiles.delete(this.dir);
+	}
+
+	public void testSequencesAcrossChunks() throws IOException {
+		// the euro sign (3 bytes) and the G clef (4 bytes, surrogate pair)
+		// start 1 byte before the end of the first chunk
+		for (String end : new String[] { "€ ok", "𝄞 ok" }) {
+			String text = ascii(BUFFER_SIZE - 1) + end;
+			byte[] utf8 = text.getBytes(UTF_8);
+			byte[] utf16 = this.transcode(utf8, UTF_8,
+					Charset.forName("UTF-16BE"));
+			assertEquals(text, new String(utf16, "UTF-16BE"));
+			assertEquals(utf8.length, this.transcoder.getBytesRead());
+			assertEquals(utf16.length, this.transcoder.getBytesWritten());
+			assertEquals(0, this.transcoder.getMalformed());
+
+			// and back, with the surrogate pair split between chunks of
+			// chars
+			assertTrue(end, Arrays.equals(utf8, this.transcode(utf16,
+					Charset.forName("UTF-16BE"), UTF_8)));
+		}
+	}
+
+	public void testMalformedInput() throws IOException {
+		// stray continuation byte, sequence interrupted after the end of the
+		// first chunk, sequence truncated at the end of the input
+		byte[] input = concat(bytes('a', 0x80, 'b'), ascii(BUFFER_SIZE - 4)
+				.getBytes(UTF_8), bytes(0xE2, 0x82, 'c', 0xE2));
+		String output = new String(this.transcode(input, UTF_8,
+				Charset.forName("UTF-16LE")), "UTF-16LE");
+		assertEquals("a�b" + ascii(BUFFER_SIZE - 4) + "�c�",
+				output);
+		assertEquals(3, this.transcoder.getMalformed());
+		assertEquals(0, this.transcoder.getUnmappable());
+	}
+
+	public void testUnmappableCharacters() throws IOException {
+		byte[] output = this.transcode("a€b日c".getBytes(UTF_8), UTF_8,
+				Charset.forName("ISO-8859-1"));
+		assertEquals("a?b?c", new String(output, "ISO-8859-1"));
+		assertEquals(0, this.transcoder.getMalformed());
+		assertEquals(2, this.transcoder.getUnmappable());
+
+		// statistics of the last conversion only
+		this.transcode("abc".getBytes(UTF_8), UTF_8,
+				Charset.forName("ISO-8859-1"));
+		assertEquals(0, this.transcoder.getUnmappable());
+	}
+
+	public void testCopyAddsBom() throws IOException {
+		byte[] text = (ascii(BUFFER_SIZE) + "été").getBytes(UTF_8);
+		byte[] copy = this.copy(text, 0, BOM);
+		assertTrue(Arrays.equals(concat(BOM, text), copy));
+		assertEquals(text.length, this.transcoder.getBytesRead());
+		assertEquals(BOM.length + text.length,
+				this.transcoder.getBytesWritten());
+	}
+
+	public void testCopyRemovesBom() throws IOException {
+		byte[] text = (ascii(BUFFER_SIZE) + "été").getBytes(UTF_8);
+		byte[] copy = this.copy(concat(BOM, text), BOM.length, null);
+		assertTrue(Arrays.equals(text, copy));
+		assertEquals(text.length, this.transcoder.getBytesRead());
+		assertEquals(text.length, this.transcoder.getBytesWritten());
+	}
+
+	public void testIsAscii() throws IOException {
+		byte[] text = ascii(BUFFER_SIZE * 2).getBytes(UTF_8);
+		assertTrue(Transcoder.isAscii(text, 0, text.length));
+		assertTrue(this.isAscii(text, 0));
+		// in the second chunk, not aligned on 8 bytes
+		text[BUFFER_SIZE + 13] = (byte) 0xE9;
+		assertFalse(Transcoder.isAscii(text, 0, text.length));
+		assertFalse(this.isAscii(text, 0));
+		assertTrue(this.isAscii(Arrays.copyOf(text, BUFFER_SIZE + 13), 0));
+		// bytes before the position are not tested
+		text = bytes(0xE9, 'a', 'b');
+		assertTrue(this.isAscii(text, 1));
+		assertTrue(Transcoder.isAscii(text, 1, text.length));
+	}
+
+	public void testValidate() throws IOException {
+		byte[] text = (ascii(BUFFER_SIZE - 1) + "€ ok").getBytes(UTF_8);
+		assertTrue(this.transcoder.validate(new ByteArrayInputStream(text),
+				UTF_8));
+		// truncated at the end
+		byte[] truncated = Arrays.copyOf(text, BUFFER_SIZE + 1);
+		assertFalse(this.transcoder.validate(new ByteArrayInputStream(
+				truncated), UTF_8));
+		text[BUFFER_SIZE] = 'x';
+		assertFalse(this.transcoder.validate(new ByteArrayInputStream(text),
+				UTF_8));
+		// all bytes are valid in ISO-8859-1
+		assertTrue(this.transcoder.validate(new ByteArrayInputStream(text),
+				Charset.forName("ISO-8859-1")));
+	}
+
+	private byte[] transcode(byte[] input, Charset from, Charset to)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		this.transcoder.transcode(new ByteArrayInputStream(input), from, out,
+				to);
+		return out.toByteArray();
+	}
+
+	private byte[] copy(byte[] input, long position, byte[] prefix)
+			throws IOException {
+		Path in = Files.write(this.dir.resolve("in.txt"), input);
+		Path out = this.dir.resolve("out.txt");
+		FileChannel inChannel = FileChannel.open(in);
+		try {
+			FileChannel outChannel = FileChannel.open(out,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE);
+			try {
+				this.transcoder.copy(inChannel, position, prefix, outChannel);
+			} finally {
+				outChannel.close();
+			}
+		} finally {
+			inChannel.close();
+		}
+		return Files.readAllBytes(out);
+	}
+
+	private boolean isAscii(byte[] input, long position) throws IOException {
+		Path in = Files.write(this.dir.resolve("in.txt"), input);
+		FileChannel inChannel = FileChannel.open(in);
+		try {
+			return this.transcoder.isAscii(inChannel, position);
+		} finally {
+			inChannel.close();
+		}
+	}
+
+	private static String ascii(int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) ('a' + i % 26);
+		}
+		return new String(chars);
+	}
+
+	private static byte[] concat(byte[]... arrays) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] array : arrays) {
+			out.write(array, 0, array.length);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012-2013 Jean-Philippe Serres
+ *
+ *   This file is part of EncTool.
+ *
+ *   EncTool is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   EncTool is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with EncTool.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package fr.serres.enctool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Validity and error offsets of Utf8Validator.
+ *
+ * @author Jean-Philippe Serres
+ *
+ */
+public class Utf8ValidatorTest extends TestCase {
+
+	/**
+	 * Size of the validator buffer.
+	 */
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private final Utf8Validator validator = new Utf8Validator();
+
+	private Path file;
+
+	@Override
+	protected void setUp() throws IOException {
+		this.file = Files.createTempFile("enctool-utf8", ".txt");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		Files.deleteIfExists(this.file);
+	}
+
+	public void testValid() throws IOException {
+		byte[] text = "ASCII, é, €, 日本, 𝄞 (U+1D11E), U+10FFFF 􏿿"
+				.getBytes(StandardCharsets.UTF_8);
+		assertTrue(this.validate(text));
+		assertEquals(text.length, this.validator.getBytesRead());
+		assertEquals(0, this.validator.getInvalid());
+		assertEquals(0, this.validator.getOffsets().length);
+		assertTrue(this.validate(new byte[0]));
+	}
+
+	public void testInvalidSequences() throws IOException {
+		// the invalid first byte and each next continuation byte are
+		// reported, as decoders replace each of them
+
+		// overlong forms
+		this.assertInvalidAt(bytes('a', 0xC0, 0x80), 1, 2);
+		this.assertInvalidAt(bytes('a', 'b', 0xE0, 0x80, 0x80), 2, 3, 4);
+		this.assertInvalidAt(bytes(0xF0, 0x80, 0x80, 0x80), 0, 1, 2, 3);
+		// surrogate
+		this.assertInvalidAt(bytes('a', 0xED, 0xA0, 0x80), 1, 2, 3);
+		// above U+10FFFF
+		this.assertInvalidAt(bytes(0xF4, 0x90, 0x80, 0x80), 0, 1, 2, 3);
+		this.assertInvalidAt(bytes('a', 0xF5, 0x80, 0x80, 0x80), 1, 2, 3,
+				4);
+		// lone continuation byte
+		this.assertInvalidAt(bytes('a', 'b', 'c', 0x80, 'd'), 3);
+	}
+
+	public void testSequenceInterrupted() throws IOException {
+		// the interrupting byte starts the next sequence
+		byte[] text = bytes('a', 0xE2, 0x82, 0xC3, 0xA9, 'b');
+		this.assertInvalidAt(text, 1);
+	}
+
+	public void testTruncatedAtTheEnd() throws IOException {
+		this.assertInvalidAt(bytes('a', 'b', 'c', 0xE2, 0x82), 3);
+		this.assertInvalidAt(bytes(0xF0, 0x9D, 0x84), 0);
+	}
+
+	public void testOffsetsAreLimited() throws IOException {
+		byte[] text = new byte[30];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = (byte) (i % 2 == 0 ? 'a' : 0xFF);
+		}
+		assertFalse(this.validate(text));
+		assertEquals(15, this.validator.getInvalid());
+		long[] offsets = this.validator.getOffsets();
+		assertEquals(Utf8Validator.MAX_OFFSETS, offsets.length);
+		for (int i = 0; i < offsets.length; i++) {
+			assertEquals(i * 2 + 1, offsets[i]);
+		}
+	}
+
+	public void testSequenceAcrossBuffers() throws IOException {
+		// the euro sign starts 1 byte before the end of the first buffer
+		assertTrue(this.validate(padded(BUFFER_SIZE - 1,
+				"€ ok".getBytes(StandardCharsets.UTF_8))));
+		assertEquals(BUFFER_SIZE + 5, this.validator.getBytesRead());
+
+		this.assertInvalidAt(padded(BUFFER_SIZE - 2, bytes(0xE2, 0x82, 'x')),
+				BUFFER_SIZE - 2);
+		this.assertInvalidAt(padded(BUFFER_SIZE - 1, bytes(0xF0, 0x9D, 0x84)),
+				BUFFER_SIZE - 1);
+		// invalid byte at the start of the second buffer
+		this.assertInvalidAt(padded(BUFFER_SIZE, bytes(0xFF, 'a')),
+				BUFFER_SIZE);
+	}
+
+	public void testValidatorIsReused() throws IOException {
+		assertFalse(this.validate(bytes('a', 0xE2)));
+		assertTrue(this.validate(bytes('a', 'b')));
+		assertEquals(0, this.validator.getInvalid());
+	}
+
+	private void assertInvalidAt(byte[] text, long... offsets)
+			throws IOException {
+		assertFalse(this.validate(text));
+		assertEquals(offsets.length, this.validator.getInvalid());
+		assertTrue(Arrays.toString(this.validator.getOffsets()),
+				Arrays.equals(offsets, this.validator.getOffsets()));
+	}
+
+	private boolean validate(byte[] text) throws IOException {
+		Files.write(this.file, text);
+		FileChannel in = FileChannel.open(this.file);
+		try {
+			return this.validator.validate(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return ASCII bytes, followed by the end.
+	 */
+	private static byte[] padded(int ascii, byte[] end) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < ascii; i++) {
+			out.write('a');
+		}
+		out.write(end, 0, end.length);
+		return out.toByteArray();
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+}